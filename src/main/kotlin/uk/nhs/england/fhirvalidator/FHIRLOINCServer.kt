@@ -13,10 +13,12 @@ import uk.nhs.england.fhirvalidator.configuration.FHIRServerProperties
 import uk.nhs.england.fhirvalidator.configuration.MessageProperties
 import uk.nhs.england.fhirvalidator.interceptor.AWSAuditEventLoggingInterceptor
 import uk.nhs.england.fhirvalidator.interceptor.ValidationInterceptor
+import uk.nhs.england.fhirvalidator.provider.ValidateR4Provider
 import uk.nhs.england.fhirvalidator.providerLOINC.CodeSystemLOINCProvider
 import uk.nhs.england.fhirvalidator.providerLOINC.ConceptMapLOINCProvider
 import uk.nhs.england.fhirvalidator.providerLOINC.QuestionnaireProvider
 import uk.nhs.england.fhirvalidator.providerLOINC.ValueSetLOINCProvider
+import uk.nhs.england.fhirvalidator.service.AuditEventPublisher
 import java.util.*
 
 
@@ -29,6 +31,8 @@ class FHIRLOINCServer(
     val codeSystemLOINCProvider: CodeSystemLOINCProvider,
     val valueSetLOINCProvider: ValueSetLOINCProvider,
     val conceptMapLOINCProvider: ConceptMapLOINCProvider,
+    private val validateR4Provider: ValidateR4Provider,
+    private val auditEventPublisher: AuditEventPublisher,
     val fhirServerProperties: FHIRServerProperties,
     private val messageProperties: MessageProperties
 ) : RestfulServer(fhirContext) {
@@ -43,15 +47,10 @@ class FHIRLOINCServer(
         registerProvider(conceptMapLOINCProvider)
 
         val awsAuditEventLoggingInterceptor =
-            AWSAuditEventLoggingInterceptor(
-                this.fhirContext,
-                fhirServerProperties,
-                messageProperties,
-                sqs
-            )
+            AWSAuditEventLoggingInterceptor(auditEventPublisher)
         interceptorService.registerInterceptor(awsAuditEventLoggingInterceptor)
 
-        val validationInterceptor = ValidationInterceptor(fhirContext,messageProperties)
+        val validationInterceptor = ValidationInterceptor(fhirContext, messageProperties, fhirServerProperties, validateR4Provider)
         interceptorService.registerInterceptor(validationInterceptor)
 
         isDefaultPrettyPrint = true
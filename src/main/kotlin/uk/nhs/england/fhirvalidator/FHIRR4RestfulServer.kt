@@ -1,7 +1,6 @@
 package uk.nhs.england.fhirvalidator
 
 import ca.uhn.fhir.context.FhirContext
-import ca.uhn.fhir.context.support.IValidationSupport
 import ca.uhn.fhir.rest.api.EncodingEnum
 import ca.uhn.fhir.rest.server.HardcodedServerAddressStrategy
 import ca.uhn.fhir.rest.server.RestfulServer
@@ -20,6 +19,8 @@ import uk.nhs.england.fhirvalidator.interceptor.CapabilityStatementInterceptor
 import uk.nhs.england.fhirvalidator.interceptor.ValidationInterceptor
 import uk.nhs.england.fhirvalidator.model.FHIRPackage
 import uk.nhs.england.fhirvalidator.provider.*
+import uk.nhs.england.fhirvalidator.service.AuditEventPublisher
+import uk.nhs.england.fhirvalidator.service.ConformanceIndex
 import java.util.*
 
 
@@ -43,7 +44,8 @@ class FHIRR4RestfulServer(
     private val valueSetProvider: ValueSetProvider,
     private val codeSystemProvider: CodeSystemProvider,
     private val compostionProvider: CompostionProvider,
-    @Qualifier("SupportChain") private val supportChain: IValidationSupport,
+    private val conformanceIndex: ConformanceIndex,
+    private val auditEventPublisher: AuditEventPublisher,
     val fhirServerProperties: FHIRServerProperties,
     private val messageProperties: MessageProperties,
     private val servicesProperties: ServicesProperties
@@ -71,19 +73,14 @@ class FHIRR4RestfulServer(
 
 
 
-        registerInterceptor(CapabilityStatementInterceptor(this.fhirContext, fhirPackage, supportChain, fhirServerProperties))
+        registerInterceptor(CapabilityStatementInterceptor(this.fhirContext, fhirPackage, conformanceIndex, fhirServerProperties))
 
 
         val awsAuditEventLoggingInterceptor =
-            AWSAuditEventLoggingInterceptor(
-                this.fhirContext,
-                fhirServerProperties,
-                messageProperties,
-                sqs
-            )
+            AWSAuditEventLoggingInterceptor(auditEventPublisher)
         interceptorService.registerInterceptor(awsAuditEventLoggingInterceptor)
 
-        val validationInterceptor = ValidationInterceptor(fhirContext,messageProperties)
+        val validationInterceptor = ValidationInterceptor(fhirContext, messageProperties, fhirServerProperties, validateR4Provider)
         interceptorService.registerInterceptor(validationInterceptor)
 
         isDefaultPrettyPrint = true
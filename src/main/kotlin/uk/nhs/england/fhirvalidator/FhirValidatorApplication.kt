@@ -13,7 +13,7 @@ import uk.nhs.england.fhirvalidator.configuration.*
 
 @SpringBootApplication
 @ServletComponentScan
-@EnableConfigurationProperties(TerminologyValidationProperties::class,FHIRServerProperties::class, ServicesProperties::class)
+@EnableConfigurationProperties(TerminologyValidationProperties::class,FHIRServerProperties::class, ServicesProperties::class, ValidationProperties::class, AuditProperties::class)
 open class FhirValidatorApplication : ApplicationRunner {
 
     private val logger = KotlinLogging.logger {}
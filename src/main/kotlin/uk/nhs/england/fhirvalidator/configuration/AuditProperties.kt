@@ -0,0 +1,16 @@
+package uk.nhs.england.fhirvalidator.configuration
+
+import org.springframework.boot.context.properties.ConfigurationProperties
+import java.time.Duration
+
+@ConfigurationProperties(prefix = "audit")
+data class AuditProperties(
+    // Requests waiting to be audited, further requests are not audited while it is full
+    var queueSize: Int = 10000,
+    // How often queued audits are built, logged and sent to SQS
+    var flushInterval: Duration = Duration.ofSeconds(1),
+    // AuditEvents per SQS SendMessageBatch request, SQS accepts at most 10
+    var batchSize: Int = 10,
+    // Largest QuestionnaireResponse body kept (in bytes) to find the patient, larger ones are audited without it
+    var maxBodySize: Int = 1024 * 1024
+)
@@ -13,6 +13,7 @@ import io.swagger.v3.oas.models.media.BooleanSchema
 import io.swagger.v3.oas.models.media.Content
 import io.swagger.v3.oas.models.media.MediaType
 
+import io.swagger.v3.oas.models.media.IntegerSchema
 import io.swagger.v3.oas.models.media.StringSchema
 import io.swagger.v3.oas.models.parameters.Parameter
 import io.swagger.v3.oas.models.parameters.RequestBody
@@ -124,6 +125,27 @@ open class OpenApiConfig(@Qualifier("R4") val ctx : FhirContext,
                         .description("The uri that identifies the profile (e.g. https://fhir.hl7.org.uk/StructureDefinition/UKCore-Patient). If no profile uri is supplied, defaults from supplied packages will be used (from the FHIR CapabilityStatements).")
                        // Removed example profile
                         .schema(StringSchema().format("token")))
+                    .addParametersItem(Parameter()
+                        .name("maxErrors")
+                        .`in`("query")
+                        .required(false)
+                        .style(Parameter.StyleEnum.SIMPLE)
+                        .description("Stop once this many errors are found. Resources are checked without terminology first, those with this many errors in their structure are returned without terminology checks, remaining inner Bundles are not validated.")
+                        .schema(IntegerSchema()))
+                    .addParametersItem(Parameter()
+                        .name("_failFast")
+                        .`in`("query")
+                        .required(false)
+                        .style(Parameter.StyleEnum.SIMPLE)
+                        .description("`true | false`. Stop at the first error, the same as maxErrors=1")
+                        .schema(StringSchema().format("token")))
+                    .addParametersItem(Parameter()
+                        .name("Prefer")
+                        .`in`("header")
+                        .required(false)
+                        .style(Parameter.StyleEnum.SIMPLE)
+                        .description("`respond-async` returns 202 Accepted at once, with a Content-Location (\$validate-status?job=) to poll for the OperationOutcome.")
+                        .schema(StringSchema()))
                     .requestBody(RequestBody().content(Content()
                         .addMediaType("application/fhir+json", MediaType()
                             .examples(examples)
@@ -132,6 +154,66 @@ open class OpenApiConfig(@Qualifier("R4") val ctx : FhirContext,
                     ))
             )
         oas.path("/FHIR/R4/\$validate",validateItem)
+        val validateStreamItem = PathItem()
+            .post(
+                Operation()
+                    .addTagsItem(VALIDATION)
+                    .summary("Validates a large JSON Bundle entry by entry, streaming the issues back as each entry is validated.")
+                    .description("Memory used is bounded by the largest entry rather than the whole Bundle. Each entry is validated on its own, so references between entries and message or document definitions are not checked.")
+                    .responses(getApiResponsesXMLJSON_JSONDefault())
+                    .addParametersItem(Parameter()
+                        .name("imposeProfile")
+                        .`in`("query")
+                        .required(false)
+                        .style(Parameter.StyleEnum.SIMPLE)
+                        .description("`true | false`. Also apply the imposeProfiles from the FHIR CapabilityStatements")
+                        .schema(StringSchema().format("token")))
+                    .requestBody(RequestBody().content(Content()
+                        .addMediaType("application/fhir+json", MediaType().schema(StringSchema()))
+                    ))
+            )
+        oas.path("/FHIR/R4/\$validate-stream",validateStreamItem)
+        val validateBulkItem = PathItem()
+            .post(
+                Operation()
+                    .addTagsItem(VALIDATION)
+                    .summary("Validates NDJSON (e.g. Bulk Data \$export output), returning NDJSON with an OperationOutcome per line.")
+                    .description("Lines are validated in parallel and returned in order, each OperationOutcome has the line number as its id. Progress can be followed with \$validate-bulk-status using the job id from the X-Bulk-Validation-Job header.")
+                    .responses(getApiResponsesXMLJSON_JSONDefault())
+                    .addParametersItem(Parameter()
+                        .name("file")
+                        .`in`("query")
+                        .required(false)
+                        .style(Parameter.StyleEnum.SIMPLE)
+                        .description("NDJSON file to validate, relative to validation.bulk.directory. The request body is validated when not supplied.")
+                        .schema(StringSchema()))
+                    .addParametersItem(Parameter()
+                        .name("profile")
+                        .`in`("query")
+                        .required(false)
+                        .style(Parameter.StyleEnum.SIMPLE)
+                        .description("The uri that identifies the profile each line is validated against.")
+                        .schema(StringSchema().format("token")))
+                    .requestBody(RequestBody().content(Content()
+                        .addMediaType("application/fhir+ndjson", MediaType().schema(StringSchema()))
+                    ))
+            )
+        oas.path("/FHIR/R4/\$validate-bulk",validateBulkItem)
+        val validateBulkStatusItem = PathItem()
+            .get(
+                Operation()
+                    .addTagsItem(VALIDATION)
+                    .summary("Progress of a \$validate-bulk job.")
+                    .responses(getApiResponsesXMLJSON_JSONDefault())
+                    .addParametersItem(Parameter()
+                        .name("job")
+                        .`in`("query")
+                        .required(true)
+                        .style(Parameter.StyleEnum.SIMPLE)
+                        .description("The job id from the X-Bulk-Validation-Job header")
+                        .schema(StringSchema()))
+            )
+        oas.path("/FHIR/R4/\$validate-bulk-status",validateBulkStatusItem)
        if (servicesProperties.Utility) {
            val fhirPathItem = PathItem()
                .post(
@@ -1,16 +1,78 @@
 package uk.nhs.england.fhirvalidator.configuration
 
 import org.springframework.boot.context.properties.ConfigurationProperties
+import uk.nhs.england.fhirvalidator.shared.NHSDCachingValidationSupport
+import java.time.Duration
 
 @ConfigurationProperties(prefix = "terminology")
 data class TerminologyValidationProperties(
     var url: String?,
     var urlLOINC: String?,
-    var authorization: Authorization?
+    var authorization: Authorization?,
+    var cache: Cache = Cache(),
+    var prefetch: Prefetch = Prefetch(),
+    var client: Client = Client()
 ) {
     data class Authorization(
         var tokenUrl: String,
         var clientId: String,
         var clientSecret: String
     )
+
+    data class Cache(
+        var validateCode: CacheSpec = CacheSpec(maximumSize = 200000, expireAfterWrite = Duration.ofHours(12)),
+        var lookupCode: CacheSpec = CacheSpec(maximumSize = 50000, expireAfterWrite = Duration.ofHours(12)),
+        var translateCode: CacheSpec = CacheSpec(maximumSize = 5000),
+        // Expansions vary from a handful of codes to many thousands, so they are bounded by memory (kilobytes)
+        var expandValueSet: CacheSpec = CacheSpec(maximumSize = 100, maximumWeight = 65536),
+        var misc: CacheSpec = CacheSpec(maximumSize = 5000),
+        var persistence: Persistence = Persistence()
+    ) {
+        fun toCacheSettings(): NHSDCachingValidationSupport.CacheSettings {
+            return NHSDCachingValidationSupport.CacheSettings()
+                .setValidateCode(validateCode.toCacheSpec())
+                .setLookupCode(lookupCode.toCacheSpec())
+                .setTranslateCode(translateCode.toCacheSpec())
+                .setExpandValueSet(expandValueSet.toCacheSpec())
+                .setMisc(misc.toCacheSpec())
+        }
+    }
+
+    // Optional on-disk copy of the code validation, lookup and expansion results, disabled unless a directory is set
+    data class Persistence(
+        var directory: String? = null,
+        var flushInterval: Duration = Duration.ofSeconds(5),
+        // Results waiting to be written, further results are dropped (not persisted) while it is full
+        var queueSize: Int = 10000,
+        // How often the files are rewritten to their current entries, they are only appended to in between
+        var compactInterval: Duration = Duration.ofHours(1)
+    )
+
+    // HTTP client used for the terminology server, a single pooled client is shared by all terminology calls
+    data class Client(
+        var connectTimeout: Duration = Duration.ofSeconds(10),
+        var readTimeout: Duration = Duration.ofMinutes(2),
+        var connectionRequestTimeout: Duration = Duration.ofSeconds(30),
+        var maxConnections: Int = 50,
+        var maxConnectionsPerRoute: Int = 20,
+        // How long an idle keep-alive connection is kept in the pool
+        var keepAlive: Duration = Duration.ofMinutes(5)
+    )
+
+    // Validate the codings of a resource against the remote server in batch Bundles before validation starts
+    data class Prefetch(
+        var enabled: Boolean = false,
+        var batchSize: Int = 100
+    )
+
+    data class CacheSpec(
+        var maximumSize: Long = 5000,
+        var maximumWeight: Long = 0,
+        var expireAfterWrite: Duration = Duration.ofMinutes(10)
+    ) {
+        fun toCacheSpec(): NHSDCachingValidationSupport.CacheSpec {
+            return NHSDCachingValidationSupport.CacheSpec(maximumSize, expireAfterWrite.toMillis())
+                .setMaximumWeight(maximumWeight)
+        }
+    }
 }
@@ -4,23 +4,32 @@ import ca.uhn.fhir.context.FhirContext
 import ca.uhn.fhir.context.support.DefaultProfileValidationSupport
 import ca.uhn.fhir.context.support.IValidationSupport
 import ca.uhn.fhir.context.support.ValidationSupportContext
+import ca.uhn.fhir.rest.client.apache.ApacheRestfulClientFactory
+import ca.uhn.fhir.rest.client.api.IGenericClient
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException
 import ca.uhn.fhir.validation.FhirValidator
 import com.fasterxml.jackson.databind.ObjectMapper
 import io.swagger.transform.util.APIFileDownload
+import io.micrometer.core.instrument.MeterRegistry
 import io.swagger.v3.oas.models.examples.Example
 import mu.KLogging
+import org.apache.commons.lang3.concurrent.BasicThreadFactory
+import org.apache.http.client.config.RequestConfig
+import org.apache.http.impl.client.HttpClients
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager
 import org.hl7.fhir.common.hapi.validation.support.*
 import org.hl7.fhir.common.hapi.validation.validator.FhirInstanceValidator
 import org.hl7.fhir.r4.model.CapabilityStatement
+import org.hl7.fhir.r4.model.ElementDefinition
 import org.hl7.fhir.r4.model.ImplementationGuide
 import org.hl7.fhir.r4.model.StructureDefinition
-import org.hl7.fhir.utilities.json.model.JsonProperty
 import org.hl7.fhir.utilities.npm.NpmPackage
 import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty
 import org.springframework.context.annotation.Bean
 import org.springframework.context.annotation.Configuration
+import org.springframework.context.annotation.Primary
 import org.springframework.core.io.ClassPathResource
 import org.springframework.security.oauth2.client.OAuth2AuthorizedClientManager
 import uk.nhs.england.fhirvalidator.awsProvider.*
@@ -28,17 +37,24 @@ import uk.nhs.england.fhirvalidator.model.DependsOn
 import uk.nhs.england.fhirvalidator.model.FHIRPackage
 import uk.nhs.england.fhirvalidator.model.SimplifierPackage
 import uk.nhs.england.fhirvalidator.service.ImplementationGuideParser
+import uk.nhs.england.fhirvalidator.service.PackageCache
+import uk.nhs.england.fhirvalidator.service.ConformanceCompactor
+import uk.nhs.england.fhirvalidator.service.FileTerminologyCacheStore
+import uk.nhs.england.fhirvalidator.service.SnapshotStore
+import uk.nhs.england.fhirvalidator.shared.NHSDCachingValidationSupport
 import uk.nhs.england.fhirvalidator.util.AccessTokenInterceptor
 import uk.nhs.england.fhirvalidator.validationSupport.SwitchedTerminologyServiceValidationSupport
 import uk.nhs.england.fhirvalidator.validationSupport.UnsupportedCodeSystemWarningValidationSupport
-import java.io.FileNotFoundException
-import java.io.IOException
 import java.io.InputStream
-import java.net.HttpURLConnection
-import java.net.URL
 import java.time.Duration
 import java.time.Instant
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
 import java.util.function.Predicate
 import kotlin.collections.ArrayList
 
@@ -46,12 +62,24 @@ import kotlin.collections.ArrayList
 @Configuration
 open class ValidationConfiguration(
     private val implementationGuideParser: ImplementationGuideParser,
+    private val snapshotStore: SnapshotStore,
+    private val packageCache: PackageCache,
+    private val conformanceCompactor: ConformanceCompactor,
+    private val validationProperties: ValidationProperties,
     private val terminologyValidationProperties: TerminologyValidationProperties,
     val messageProperties: MessageProperties,
     val fhirServerProperties: FHIRServerProperties,
     val objectMapper: ObjectMapper
 ) {
-    companion object : KLogging()
+    companion object : KLogging() {
+        // Code systems validated against the remote terminology server (when configured)
+        val remoteCodeSystems: Predicate<String> = Predicate { it.startsWith("http://snomed.info/sct")
+                || it.startsWith("https://dmd.nhs.uk")
+                || it.startsWith("http://read.info")
+                || it.startsWith("http://loinc.org")
+                || it.startsWith("http://hl7.org/fhir/sid/icd")
+        }
+    }
 
     var npmPackages: List<NpmPackage> = emptyList()
 
@@ -61,13 +89,24 @@ open class ValidationConfiguration(
         return this.fhirPackage
     }
     @Bean
+    @Primary
     open fun validator(@Qualifier("R4") fhirContext: FhirContext, instanceValidator: FhirInstanceValidator): FhirValidator {
         return fhirContext.newValidator().registerValidatorModule(instanceValidator)
     }
 
+    // Structure and profiles only, no terminology server calls. Used to reject resources quickly when $validate has maxErrors
+    @Bean("Structural")
+    open fun structuralValidator(@Qualifier("R4") fhirContext: FhirContext, supportChain: ValidationSupportChain): FhirValidator {
+        val instanceValidator = FhirInstanceValidator(supportChain)
+        instanceValidator.isNoTerminologyChecks = true
+        return fhirContext.newValidator().registerValidatorModule(instanceValidator)
+    }
+
     @Bean
-    open fun instanceValidator(supportChain: ValidationSupportChain): FhirInstanceValidator {
-       return FhirInstanceValidator(uk.nhs.england.fhirvalidator.shared.NHSDCachingValidationSupport(supportChain))
+    open fun instanceValidator(supportChain: ValidationSupportChain, meterRegistry: MeterRegistry): FhirInstanceValidator {
+        val cachingValidationSupport = NHSDCachingValidationSupport(supportChain, "validator", terminologyValidationProperties.cache.toCacheSettings())
+        cachingValidationSupport.bindTo(meterRegistry)
+        return FhirInstanceValidator(cachingValidationSupport)
        // return FhirInstanceValidator(supportChain)
     }
 
@@ -100,9 +139,29 @@ open class ValidationConfiguration(
 
              */
             val npms = npmPackages!!.filter { !it.name().equals("hl7.fhir.r4.examples") }
-            for (pckg in npms) {
-                val support = implementationGuideParser.createPrePopulatedValidationSupport(pckg)
+            // Packages without stored snapshots, their snapshots are stored once generated
+            val snapshotsToStore = ArrayList<Triple<NpmPackage, String, IValidationSupport>>()
+            // Packages are parsed in parallel, then added to the chain in order
+            val executor = newPackageExecutor()
+            val supports = try {
+                npms.map { pckg ->
+                    CompletableFuture.supplyAsync({
+                        val support = implementationGuideParser.createPrePopulatedValidationSupport(pckg)
+                        var fingerprint: String? = null
+                        if (snapshotStore.isEnabled) {
+                            fingerprint = snapshotStore.fingerprint(pckg)
+                            if (snapshotStore.restore(pckg, fingerprint, support)) fingerprint = null
+                        }
+                        Pair(support, fingerprint)
+                    }, executor)
+                }.map { it.join() }
+            } finally {
+                executor.shutdown()
+            }
+            for ((index, pckg) in npms.withIndex()) {
+                val (support, fingerprint) = supports[index]
                 supportChain.addValidationSupport(support)
+                if (fingerprint != null) snapshotsToStore.add(Triple(pckg, fingerprint, support))
                 var description = pckg.description()
                 if (description == null) description = ""
                 var derived = true
@@ -137,6 +196,10 @@ open class ValidationConfiguration(
             }
             //Initialise now instead of when the first message arrives
             generateSnapshots(supportChain)
+            snapshotsToStore.forEach { snapshotStore.save(it.first, it.second, it.third) }
+            if (validationProperties.compactConformance) {
+                conformanceCompactor.compact(supportChain.fetchAllStructureDefinitions<StructureDefinition>().filterIsInstance<StructureDefinition>())
+            }
             supportChain.fetchCodeSystem("http://snomed.info/sct")
             // Correct dependencies canonical urls
             for (pkg in this.fhirPackage) {
@@ -160,13 +223,32 @@ open class ValidationConfiguration(
         }
     }
 
+    @Bean
+    @ConditionalOnProperty("terminology.url")
+    open fun remoteCachingValidationSupport(
+        remoteTerminologySupport: uk.nhs.england.fhirvalidator.shared.RemoteTerminologyServiceValidationSupport,
+        optionalTerminologyCacheStore: Optional<FileTerminologyCacheStore>
+    ): NHSDCachingValidationSupport {
+        // As a bean (MeterBinder) its cache metrics are registered by actuator
+        val cachingSupport = NHSDCachingValidationSupport(remoteTerminologySupport, "remote", terminologyValidationProperties.cache.toCacheSettings())
+        optionalTerminologyCacheStore.ifPresent { cachingSupport.setStore(it) }
+        return cachingSupport
+    }
+
+    @Bean
+    @ConditionalOnProperty("terminology.cache.persistence.directory")
+    open fun terminologyCacheStore(@Qualifier("R4") fhirContext: FhirContext): FileTerminologyCacheStore {
+        logger.info("Persisting terminology results in ${terminologyValidationProperties.cache.persistence.directory}")
+        return FileTerminologyCacheStore(fhirContext, terminologyValidationProperties.cache)
+    }
+
     @Bean
     open fun switchedTerminologyServiceValidationSupport(
         @Qualifier("R4") fhirContext: FhirContext,
-        optionalRemoteTerminologySupport: Optional<uk.nhs.england.fhirvalidator.shared.RemoteTerminologyServiceValidationSupport>
+        optionalRemoteCachingSupport: Optional<NHSDCachingValidationSupport>
     ): SwitchedTerminologyServiceValidationSupport {
-        val snomedValidationSupport = if (optionalRemoteTerminologySupport.isPresent) {
-            uk.nhs.england.fhirvalidator.shared.NHSDCachingValidationSupport(optionalRemoteTerminologySupport.get())
+        val snomedValidationSupport = if (optionalRemoteCachingSupport.isPresent) {
+            optionalRemoteCachingSupport.get()
             // Disabled default caching as it was causing invalid results (on snomed display terms)
         } else {
             UnsupportedCodeSystemWarningValidationSupport(fhirContext)
@@ -176,21 +258,53 @@ open class ValidationConfiguration(
             fhirContext,
             InMemoryTerminologyServerValidationSupport(fhirContext),
             snomedValidationSupport,
-            Predicate { it.startsWith("http://snomed.info/sct")
-                    || it.startsWith("https://dmd.nhs.uk")
-                    || it.startsWith("http://read.info")
-                    || it.startsWith("http://loinc.org")
-                    || it.startsWith("http://hl7.org/fhir/sid/icd")
-            }
+            remoteCodeSystems
         )
     }
 
+    @Bean("Terminology")
+    open fun terminologyClientFactory(@Qualifier("R4") fhirContext: FhirContext): IRestfulClientFactory {
+        val clientProperties = terminologyValidationProperties.client
+        val connectionManager = PoolingHttpClientConnectionManager(clientProperties.keepAlive.toMillis(), TimeUnit.MILLISECONDS)
+        connectionManager.maxTotal = clientProperties.maxConnections
+        connectionManager.defaultMaxPerRoute = clientProperties.maxConnectionsPerRoute
+        val requestConfig = RequestConfig.custom()
+            .setConnectTimeout(clientProperties.connectTimeout.toMillis().toInt())
+            .setSocketTimeout(clientProperties.readTimeout.toMillis().toInt())
+            .setConnectionRequestTimeout(clientProperties.connectionRequestTimeout.toMillis().toInt())
+            .build()
+        val httpClient = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setDefaultRequestConfig(requestConfig)
+            .evictIdleConnections(clientProperties.keepAlive.toMillis(), TimeUnit.MILLISECONDS)
+            .disableCookieManagement()
+            .build()
+        // Own factory so the terminology pool and timeouts don't change the FhirContext's shared client factory
+        val clientFactory = ApacheRestfulClientFactory(fhirContext)
+        clientFactory.setHttpClient(httpClient)
+        return clientFactory
+    }
+
+    @Bean("TerminologyClient")
+    @ConditionalOnProperty("terminology.url")
+    open fun terminologyClient(
+        @Qualifier("Terminology") terminologyClientFactory: IRestfulClientFactory,
+        optionalAuthorizedClientManager: Optional<OAuth2AuthorizedClientManager>
+    ): IGenericClient {
+        val client = terminologyClientFactory.newGenericClient(terminologyValidationProperties.url)
+        if (optionalAuthorizedClientManager.isPresent) {
+            client.registerInterceptor(AccessTokenInterceptor(optionalAuthorizedClientManager.get()))
+        }
+        return client
+    }
+
     @Bean
     @ConditionalOnProperty("terminology.url")
     open fun remoteTerminologyServiceValidationSupport(
         @Qualifier("R4") fhirContext: FhirContext,
         optionalAuthorizedClientManager: Optional<OAuth2AuthorizedClientManager>,
-        loincRemoteTerminologyServiceValidationSupport: RemoteTerminologyServiceValidationSupport
+        loincRemoteTerminologyServiceValidationSupport: RemoteTerminologyServiceValidationSupport,
+        @Qualifier("Terminology") terminologyClientFactory: IRestfulClientFactory
     ): uk.nhs.england.fhirvalidator.shared.RemoteTerminologyServiceValidationSupport {
         logger.info("Using remote terminology server at ${terminologyValidationProperties.url}")
         val validationSupport =
@@ -198,6 +312,7 @@ open class ValidationConfiguration(
                 fhirContext,loincRemoteTerminologyServiceValidationSupport
             )
         validationSupport.setBaseUrl(terminologyValidationProperties.url)
+        validationSupport.setClientFactory(terminologyClientFactory)
 
         if (optionalAuthorizedClientManager.isPresent) {
             val authorizedClientManager = optionalAuthorizedClientManager.get()
@@ -231,7 +346,6 @@ open class ValidationConfiguration(
 
         fun generateSnapshots(supportChain: IValidationSupport) {
             val structureDefinitions = supportChain.fetchAllStructureDefinitions<StructureDefinition>() ?: return
-            val context = ValidationSupportContext(supportChain)
             structureDefinitions
                 .filter { shouldGenerateSnapshot(it) }
                 .forEach {
@@ -242,20 +356,74 @@ open class ValidationConfiguration(
                     }
                 }
 
-            structureDefinitions
-                .filter { shouldGenerateSnapshot(it) }
-                .forEach {
+            val toGenerate = structureDefinitions.filter { shouldGenerateSnapshot(it) }
+            if (toGenerate.isEmpty()) return
+            val byUrl = HashMap<String, StructureDefinition>()
+            toGenerate.forEach { byUrl.putIfAbsent(it.url, it) }
+
+            // A profile is generated once the profiles it depends on (when those also need a snapshot) are done,
+            // independent profiles are generated concurrently. The snapshot generator also expands the extensions
+            // and type profiles an element refers to, so those are dependencies as well as the baseDefinition.
+            val executor = Executors.newFixedThreadPool(
+                validationProperties.snapshotConcurrency.coerceAtLeast(1),
+                BasicThreadFactory.Builder().namingPattern("SnapshotGeneration-%d").daemon(true).build()
+            )
+            val tasks = HashMap<StructureDefinition, CompletableFuture<Unit>>()
+            val scheduling = HashSet<StructureDefinition>()
+            fun schedule(structureDefinition: StructureDefinition): CompletableFuture<Unit> {
+                tasks[structureDefinition]?.let { return it }
+                scheduling.add(structureDefinition)
+                // A circular dependency is treated as no dependency rather than waiting forever
+                val after = dependencies(structureDefinition, byUrl)
+                    .filter { tasks.containsKey(it) || !scheduling.contains(it) }
+                    .map { schedule(it) }
+                val task = CompletableFuture.allOf(*after.toTypedArray()).handleAsync({ _, _ ->
                     try {
                         val start: Instant = Instant.now()
-                        supportChain.generateSnapshot(context, it, it.url, "https://fhir.nhs.uk/R4", it.name)
+                        // A context per task, its record of the snapshots being generated is not thread safe
+                        val context = ValidationSupportContext(supportChain)
+                        supportChain.generateSnapshot(context, structureDefinition, structureDefinition.url, "https://fhir.nhs.uk/R4", structureDefinition.name)
                         val end: Instant = Instant.now()
                         val duration: Duration = Duration.between(start, end)
-                        logger.info(duration.toMillis().toString() + " ms $it")
+                        logger.info(duration.toMillis().toString() + " ms $structureDefinition")
                     } catch (e: Exception) {
-                        logger.error("Failed to generate snapshot for $it", e)
+                        logger.error("Failed to generate snapshot for $structureDefinition", e)
                     }
-                }
+                }, executor)
+                tasks[structureDefinition] = task
+                return task
+            }
+            val start = Instant.now()
+            try {
+                CompletableFuture.allOf(*toGenerate.map { schedule(it) }.toTypedArray()).join()
+            } finally {
+                executor.shutdown()
+            }
+            // Compare the elapsed time of runs with different snapshotConcurrency to see the effect of concurrency
+            logger.info("Generated {} snapshots in {} ms on {} threads",
+                toGenerate.size, Duration.between(start, Instant.now()).toMillis(), validationProperties.snapshotConcurrency)
+        }
+
+    /**
+     * The profiles (still needing a snapshot) the snapshot of [structureDefinition] is built from: its baseDefinition
+     * and the extensions and type profiles referred to by its elements
+     */
+    private fun dependencies(
+        structureDefinition: StructureDefinition,
+        byUrl: Map<String, StructureDefinition>
+    ): Set<StructureDefinition> {
+        val urls = HashSet<String>()
+        structureDefinition.baseDefinition?.let { urls.add(it) }
+        // has* first, the getters create empty components
+        val elements = ArrayList<ElementDefinition>()
+        if (structureDefinition.hasSnapshot()) elements.addAll(structureDefinition.snapshot.element)
+        if (structureDefinition.hasDifferential()) elements.addAll(structureDefinition.differential.element)
+        elements.forEach { element ->
+            element.type.forEach { type -> type.profile.forEach { profile -> profile.value?.let { urls.add(it) } } }
         }
+        return urls.mapNotNullTo(LinkedHashSet()) { byUrl[it.substringBefore("|")] }
+            .apply { remove(structureDefinition) }
+    }
 
     private fun circularReferenceCheck(structureDefinition: StructureDefinition, supportChain: IValidationSupport): StructureDefinition {
         if (structureDefinition.hasSnapshot()) logger.error(structureDefinition.url + " has snapshot!!")
@@ -292,156 +460,82 @@ open class ValidationConfiguration(
 
 
     open fun getPackages() :Array<SimplifierPackage>? {
-        var manifest : Array<SimplifierPackage>? = null
-        if (fhirServerProperties.igs != null && !fhirServerProperties.igs!!.isEmpty()   ) {
-            val packages= fhirServerProperties.igs!!.split(",")
-            val manifest2 = arrayListOf<SimplifierPackage>()
-            packages.forEachIndexed{ index, pkg  ->
-                manifest2.add(SimplifierPackage(pkg.substringBefore("#"),pkg.substringAfter("#"),null))
+        val manifest = packageCache.getManifest()
+        // Each name#version is fetched once however many IGs depend on it, fetches and parsing run on a pool
+        val resolved = ConcurrentHashMap<String, CompletableFuture<NpmPackage>>()
+        val executor = newPackageExecutor()
+        try {
+            for (packageNpm in manifest) {
+                resolvePackage(resolved, executor, packageNpm.packageName, packageNpm.version, packageNpm.downloadUrl, false)
             }
-            manifest = manifest2.toTypedArray()
-        } else {
-            val configurationInputStream = ClassPathResource("manifest.json").inputStream
-            manifest = objectMapper.readValue(configurationInputStream, Array<SimplifierPackage>::class.java)
+            // Dependencies are registered before their dependant completes, so wait until no new packages appear
+            var pending: List<CompletableFuture<NpmPackage>>
+            do {
+                pending = resolved.values.toList()
+                CompletableFuture.allOf(*pending.toTypedArray()).join()
+            } while (pending.size != resolved.size)
+        } catch (ex: CompletionException) {
+            throw ex.cause ?: ex
+        } finally {
+            executor.shutdown()
         }
-
         val packages = HashMap<String, NpmPackage>()
-        if (manifest == null) throw UnprocessableEntityException("Error processing IG manifest")
-        for (packageNpm in manifest ) {
-            val packageName = packageNpm.packageName + "-" + packageNpm.version+ ".tgz"
-
-            var inputStream: InputStream? = null
-            try {
-                inputStream = ClassPathResource(packageName).inputStream
-            } catch (ex : Exception) {
-                if (ex.message != null) logger.info(ex.message)
-            }
-            if (inputStream == null) {
-                val downloadedPackages = downloadPackage(packageNpm.packageName,packageNpm.version, packageNpm.downloadUrl)
-                for (downloadpackage in downloadedPackages) {
-                    val name = downloadpackage.name()+'#'+downloadpackage.version()
-                    if (packages.get(name) == null) {
-                        packages.put(name,downloadpackage)
-                    } else {
-                        logger.info("package "+name + " already present")
-                    }
-                }
+        for (future in resolved.values) {
+            val npmPackage = future.join()
+            val name = npmPackage.name() + '#' + npmPackage.version()
+            if (packages.get(name) == null) {
+                packages.put(name, npmPackage)
             } else {
-                logger.info("Using local cache for {} - {}",packageNpm.packageName, packageNpm.version)
-                val downloadpackage = NpmPackage.fromPackage(inputStream)
-                val name = downloadpackage.name()+'#'+downloadpackage.version()
-                if (packages.get(name) == null) {
-                    packages.put(name,downloadpackage)
-                } else {
-                    logger.info("package "+name + " already present")
-                }
+                logger.info("package " + name + " already present")
             }
         }
         this.npmPackages = packages.values.toList()
-        /*
-        if (fhirServerProperties.ig != null && !fhirServerProperties.ig!!.isEmpty()) {
-            return downloadPackage(fhirServerProperties.ig!!)
-        }
-        return Arrays.stream(packages)
-            .map { "${it.packageName}-${it.version}.tgz" }
-            .map { ClassPathResource(it).inputStream }
-            .map { NpmPackage.fromPackage(it) }
-            .toList()
-
-         */
         return manifest
     }
 
-    open fun downloadPackage(name : String, version : String, downloadPath: String?) : List<NpmPackage> {
-        logger.info("Downloading from AWS Cache {} - {}",name, version)
-        // Try self first
-        var inputStream : InputStream? = null;
-        try {
-            if (downloadPath == null ) {
-                val packUrl = "https://fhir.nhs.uk/ImplementationGuide/" + name + "-" + version
-                inputStream =
-                    readFromUrl(messageProperties.getNPMFhirServer() + "/FHIR/R4/ImplementationGuide/\$package?url=" + packUrl)
-                logger.info("Found Package on AWS Cache {} - {}", name, version)
-            } else {
-                val packUrl = "https://fhir.nhs.uk/ImplementationGuide/" + name + "-" + version
-                inputStream =
-                    readFromUrl(downloadPath)
-                logger.info("Found Package at specified download path {} - {}", name, version)
-            }
-        } catch (ex : Exception) {
-            logger.warn("Package not found in IG Publisher or AWS Cache trying simplifier {} - {}",name,version)
-            if (ex.message!=null) logger.info(ex.message)
-            try {
-                inputStream = readFromUrl("https://packages.simplifier.net/" + name + "/" + version)
-                logger.info("Found Package on Simplifier {} - {}",name,version)
-            } catch (exSimplifier: Exception) {
-                logger.error("Package not found on simplifier {} - {}",name, version)
-            }
-        }
-        if (inputStream == null) logger.error("Failed to download  {} - {}",name, version)
-        val packages = arrayListOf<NpmPackage>()
-        val npmPackage = NpmPackage.fromPackage(inputStream)
-
-        val dependency= npmPackage.npm.get("dependencies")
-
-        if (dependency !== null) {
-            if (dependency.isJsonArray) logger.info("isJsonArray")
-            if (dependency.isJsonObject) {
-                val obj = dependency.asJsonObject()
-                obj.properties
-                val entrySet: MutableList<JsonProperty>? = obj.properties
-                entrySet?.forEach()
-                {
-                    logger.info(it.name + " version =  " + it.value)
-                    if (it.name != "hl7.fhir.r4.core") {
-                        val entryVersion = it.value?.asString()?.replace("\"","")
-                        if (it.name != null && entryVersion != null) {
-                            val packs = downloadPackage(it.name!!, entryVersion, null)
-                            if (packs.size > 0) {
-                                for (pack in packs) {
-                                    packages.add(pack)
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            if (dependency.isJsonNull) logger.info("isNull")
-            if (dependency.isJsonPrimitive) logger.info("isJsonPrimitive")
-        } else {
-            logger.info("No dependencies found for {} - {}",name,version)
-        }
-
-        packages.add(npmPackage)
-
-
-        return packages
+    private fun newPackageExecutor(): ExecutorService {
+        return Executors.newFixedThreadPool(
+            validationProperties.packageConcurrency.coerceAtLeast(1),
+            BasicThreadFactory.Builder().namingPattern("PackageLoader-%d").daemon(true).build()
+        )
     }
 
-    fun readFromUrl(url: String): InputStream {
-
-        val myUrl =  URL(url)
-
-        var retry = 2
-        while (retry > 0) {
-            val conn = myUrl.openConnection() as HttpURLConnection
-
-
-            conn.requestMethod = "GET"
-
-            try {
-                conn.connect()
-                return conn.inputStream
-            } catch (ex: FileNotFoundException) {
-                retry--
-                if (retry < 1) throw UnprocessableEntityException(ex.message)
-            } catch (ex: IOException) {
-                retry--
-                if (retry < 1) throw UnprocessableEntityException(ex.message)
-
-            }
+    /**
+     * Load name#version unless it is already loading. Packages on the classpath are used as they are, downloaded
+     * packages and dependencies also have their own dependencies resolved.
+     */
+    private fun resolvePackage(
+        resolved: ConcurrentHashMap<String, CompletableFuture<NpmPackage>>,
+        executor: ExecutorService,
+        name: String,
+        version: String,
+        downloadPath: String?,
+        isDependency: Boolean
+    ) {
+        resolved.computeIfAbsent("$name#$version") {
+            CompletableFuture.supplyAsync({
+                packageCache.checkPackageId(name, version)
+                val packageName = "$name-$version.tgz"
+                var inputStream: InputStream? = null
+                try {
+                    inputStream = ClassPathResource(packageName).inputStream
+                } catch (ex : Exception) {
+                    if (ex.message != null) logger.info(ex.message)
+                }
+                val npmPackage = if (inputStream == null) {
+                    packageCache.getPackage(name, version, downloadPath)
+                } else {
+                    logger.info("Using local cache for {} - {}", name, version)
+                    inputStream.use { NpmPackage.fromPackage(it) }
+                }
+                if (inputStream == null || isDependency) {
+                    for (dependency in packageCache.getDependencies(npmPackage)) {
+                        resolvePackage(resolved, executor, dependency.first, dependency.second, null, true)
+                    }
+                }
+                npmPackage
+            }, executor)
         }
-        throw UnprocessableEntityException("Number of retries exhausted")
     }
 
     private fun getBase(profile : String,supportChain: IValidationSupport): String? {
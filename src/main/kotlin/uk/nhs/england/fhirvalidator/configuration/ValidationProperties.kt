@@ -0,0 +1,89 @@
+package uk.nhs.england.fhirvalidator.configuration
+
+import org.springframework.boot.context.properties.ConfigurationProperties
+import java.time.Duration
+
+@ConfigurationProperties(prefix = "validation")
+data class ValidationProperties(
+    // Number of inner bundles (searchset/collection/transaction of Bundles) validated concurrently, 1 disables
+    var bundleConcurrency: Int = Runtime.getRuntime().availableProcessors(),
+    // Threads generating StructureDefinition snapshots at startup, 1 generates them one at a time
+    var snapshotConcurrency: Int = Runtime.getRuntime().availableProcessors(),
+    // Packages downloaded and parsed concurrently at startup
+    var packageConcurrency: Int = 8,
+    // Directory where downloaded IG packages are kept and reused, packages are downloaded on every start when unset
+    var packageCache: String? = null,
+    // Share identical snapshot elements and repeated strings between the loaded R4 profiles once snapshots are generated,
+    // off by default as userData isn't compared and a change to a shared element is seen by every profile using it
+    var compactConformance: Boolean = false,
+    // Directory where generated snapshots are kept between restarts, not kept when unset
+    var snapshotCache: String? = null,
+    var bulk: Bulk = Bulk(),
+    var async: Async = Async(),
+    var resultCache: ResultCache = ResultCache(),
+    // Applied to every issue returned by $validate, setting these replaces the defaults
+    var issueRules: List<IssueRule> = IssueRule.defaults()
+) {
+    // Changes the severity of (or removes) issues whose diagnostics contain the given text
+    data class IssueRule(
+        // Name of the rule in the validation.issues.rewritten metric
+        var name: String = "",
+        // Diagnostics contain at least one of these (ignored when empty)
+        var anyOf: List<String> = emptyList(),
+        // Diagnostics contain every one of these
+        var allOf: List<String> = emptyList(),
+        // Diagnostics contain none of these
+        var noneOf: List<String> = emptyList(),
+        // New severity (fatal, error, warning or information), or remove to drop the issue
+        var action: String = "information"
+    ) {
+        companion object {
+            fun defaults() = listOf(
+                IssueRule("treatment-function-not-found",
+                    allOf = listOf("404", "https://fhir.nhs.uk/CodeSystem/NHSDataModelAndDictionary-treatment-function")),
+                // Probably an ontology server issue
+                IssueRule("code-system-not-found",
+                    allOf = listOf("404", "A usable code system with URL"), noneOf = listOf(".uk")),
+                IssueRule("advisory",
+                    anyOf = listOf("http://unstats.un.org/unsd/", "note that the validator cannot judge what is suitable")),
+                IssueRule("noise", action = "remove",
+                    anyOf = listOf(
+                        "because \"theCodeSystem\"",
+                        "but you should check that it's not intended to match a slice",
+                        "because &quot;theCodeSystem&quot; is null",
+                        "A resource should have narrative for robust management"))
+            )
+        }
+    }
+
+    // $validate results kept by a hash of the resource, parameters and loaded packages
+    data class ResultCache(
+        // Every request pays for encoding the resource to hash it, hit or miss, so only worth it when resends are common
+        var enabled: Boolean = false,
+        var maximumSize: Long = 10000,
+        // Also bounds how long a result can be out of date with the terminology server
+        var expireAfterWrite: Duration = Duration.ofMinutes(10)
+    )
+
+    // $validate requests sent with Prefer: respond-async
+    data class Async(
+        // Validations run at the same time
+        var workers: Int = Runtime.getRuntime().availableProcessors(),
+        // Validations waiting for a worker, further requests are refused (503) while it is full
+        var queueSize: Int = 100,
+        // How long a result can be fetched after the validation finishes
+        var resultRetention: Duration = Duration.ofMinutes(15)
+    )
+
+    // NDJSON validation ($validate-bulk)
+    data class Bulk(
+        // Lines validated concurrently
+        var concurrency: Int = Runtime.getRuntime().availableProcessors(),
+        // Lines read ahead of the oldest line still being validated, reading pauses while this many are outstanding
+        var queueSize: Int = 1000,
+        // Directory the file parameter may read NDJSON from, local files can't be validated when unset
+        var directory: String? = null,
+        // How long the progress of a finished job can still be read
+        var statusRetention: Duration = Duration.ofHours(1)
+    )
+}
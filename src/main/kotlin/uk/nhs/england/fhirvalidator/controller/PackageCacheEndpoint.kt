@@ -0,0 +1,20 @@
+package uk.nhs.england.fhirvalidator.controller
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation
+import org.springframework.stereotype.Component
+import uk.nhs.england.fhirvalidator.service.PackageCache
+
+/**
+ * /actuator/packagecache lists the cached IG packages. The cache is filled by starting the validator with the
+ * packages it should hold, there is no write operation as actuator endpoints are exposed without authentication.
+ */
+@Component
+@Endpoint(id = "packagecache")
+class PackageCacheEndpoint(private val packageCache: PackageCache) {
+
+    @ReadOperation
+    fun packages(): List<String> {
+        return packageCache.getCachedPackages()
+    }
+}
@@ -1,61 +1,72 @@
 package uk.nhs.england.fhirvalidator.interceptor
 
-import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain
+import uk.nhs.england.fhirvalidator.service.ConformanceIndex
 import uk.nhs.england.fhirvalidator.util.applyProfile
-import uk.nhs.england.fhirvalidator.util.getResourcesOfType
 import org.hl7.fhir.instance.model.api.IBaseResource
+import org.hl7.fhir.r4.model.Bundle
 import org.hl7.fhir.r4.model.CanonicalType
 import org.hl7.fhir.r4.model.CapabilityStatement
 import org.springframework.stereotype.Service
 
 @Service
 class CapabilityStatementApplier(
-    val supportChain: ValidationSupportChain
+    conformanceIndex: ConformanceIndex
 ) {
-    private val restResources = supportChain.fetchAllConformanceResources()?.filterIsInstance(CapabilityStatement::class.java)?.filterNot {
+    private val restResources = conformanceIndex.getResources(CapabilityStatement::class.java).filterNot {
         it.url == null
             || it.url.contains("sdc")
             || it.url.contains("ips")
           //  || it.url.contains("ipa")
           //  || (!it.url.contains(".uk") && !it.url.contains(".wales") && !it.url.contains("virtually.healthcare") )
             || it.url.contains("us.core")}
-        ?.flatMap { it.rest }
-        ?.flatMap { it.resource }
+        .flatMap { it.rest }
+        .flatMap { it.resource }
 
-    fun applyCapabilityStatementProfiles(resource: IBaseResource, importProfile: Boolean?) {
-        restResources?.forEach { applyRestResource(resource, it, importProfile) }
-    }
+    // Profiles to apply by resource type, in CapabilityStatement order, imposeProfiles are only applied on request
+    private val profilesByType = HashMap<String, MutableList<RestProfile>>()
 
-    fun getProfile(resourceType: String): String? {
-        var profile: String? = null
-        restResources?.forEach {
-            if (it.type !== null && it.type.equals(resourceType) && it.hasProfile()) {
-                profile = it.profile
-            }
+    // The last profile declared for each resource type
+    private val profileByType = HashMap<String, String>()
 
-        }
-        return profile
-    }
-    private fun applyRestResource(
-        resource: IBaseResource,
-        restResource: CapabilityStatement.CapabilityStatementRestResourceComponent,
-        importProfile: Boolean?
-    ) {
-        val matchingResources = getResourcesOfType(resource, restResource.type)
-        if (restResource.hasProfile()) {
-            applyProfile(matchingResources, restResource.profile)
-        }
-        if (importProfile !== null && importProfile && restResource.hasExtension()) {
-            restResource.extension.forEach{
+    init {
+        for (restResource in restResources) {
+            if (restResource.type == null) continue
+            val profiles = profilesByType.getOrPut(restResource.type) { ArrayList() }
+            if (restResource.hasProfile()) {
+                profiles.add(RestProfile(restResource.profile, false))
+                profileByType[restResource.type] = restResource.profile
+            }
+            restResource.extension.forEach {
                 if (it.hasUrl()
                     && it.url.equals("http://hl7.org/fhir/StructureDefinition/structuredefinition-imposeProfile")
                     && it.hasValue() && it.value is CanonicalType) {
-                        val canonicalType =  it.value as CanonicalType
-                        applyProfile(matchingResources, canonicalType.value)
+                        profiles.add(RestProfile((it.value as CanonicalType).value, true))
                 }
             }
+        }
+    }
+
+    fun applyCapabilityStatementProfiles(resource: IBaseResource, importProfile: Boolean?) {
+        val imposeProfiles = importProfile !== null && importProfile
+        // KGM exclude bundles from resource checks
+        if (resource !is Bundle) {
+            applyRestProfiles(resource, imposeProfiles)
+        } else {
+            resource.entry.forEach { if (it.resource != null) applyRestProfiles(it.resource, imposeProfiles) }
+        }
+    }
+
+    fun getProfile(resourceType: String): String? {
+        return profileByType[resourceType]
+    }
 
+    private fun applyRestProfiles(resource: IBaseResource, imposeProfiles: Boolean) {
+        val profiles = profilesByType[resource.fhirType()] ?: return
+        val matchingResources = listOf(resource)
+        for (profile in profiles) {
+            if (!profile.impose || imposeProfiles) applyProfile(matchingResources, profile.profile)
         }
     }
 
+    private data class RestProfile(val profile: String, val impose: Boolean)
 }
@@ -1,7 +1,6 @@
 package uk.nhs.england.fhirvalidator.interceptor
 
 import ca.uhn.fhir.context.FhirContext
-import ca.uhn.fhir.context.support.IValidationSupport
 import ca.uhn.fhir.interceptor.api.Hook
 import ca.uhn.fhir.interceptor.api.Interceptor
 import ca.uhn.fhir.interceptor.api.Pointcut
@@ -14,13 +13,14 @@ import org.springframework.core.io.ClassPathResource
 import uk.nhs.england.fhirvalidator.configuration.FHIRServerProperties
 import uk.nhs.england.fhirvalidator.model.FHIRPackage
 import uk.nhs.england.fhirvalidator.model.SimplifierPackage
+import uk.nhs.england.fhirvalidator.service.ConformanceIndex
 import uk.nhs.england.fhirvalidator.service.ImplementationGuideParser
 
 @Interceptor
 class CapabilityStatementInterceptor(
     fhirContext: FhirContext,
     private val fhirPackage: List<FHIRPackage>,
-    private val supportChain: IValidationSupport,
+    private val conformanceIndex: ConformanceIndex,
     private val fhirServerProperties: FHIRServerProperties
 ) {
 
@@ -88,7 +88,7 @@ class CapabilityStatementInterceptor(
         cs.extension.add(apiextension)
 */
 
-        for (resourceIG in supportChain.fetchAllConformanceResources()?.filterIsInstance<CapabilityStatement>()!!) {
+        for (resourceIG in conformanceIndex.getResources(CapabilityStatement::class.java)) {
             if (resourceIG.url.contains(".uk")) {
                 for (restComponent in resourceIG.rest) {
                     for (component in restComponent.resource) {
@@ -134,7 +134,7 @@ class CapabilityStatementInterceptor(
         }
         val message = CapabilityStatement.CapabilityStatementMessagingComponent()
 
-        for (resourceIG in supportChain.fetchAllConformanceResources()?.filterIsInstance<MessageDefinition>()!!) {
+        for (resourceIG in conformanceIndex.getResources(MessageDefinition::class.java)) {
             if (resourceIG.hasUrl()) {
                 val messageDefinition = CapabilityStatement.CapabilityStatementMessagingSupportedMessageComponent()
                     .setDefinition(resourceIG.url)
@@ -183,13 +183,6 @@ class CapabilityStatementInterceptor(
 
     fun getOperationDefinition(operationCode : String) : OperationDefinition? {
         val operation= operationCode.removePrefix("$")
-        for (resource in supportChain.fetchAllConformanceResources()!!) {
-            if (resource is OperationDefinition) {
-                if (resource.code.equals(operation)) {
-                    return resource
-                }
-            }
-        }
-        return null
+        return conformanceIndex.getByCode(OperationDefinition::class.java, operation).firstOrNull()
     }
 }
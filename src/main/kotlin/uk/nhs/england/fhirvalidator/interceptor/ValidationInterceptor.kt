@@ -5,30 +5,48 @@ import ca.uhn.fhir.i18n.Msg
 import ca.uhn.fhir.interceptor.api.Hook
 import ca.uhn.fhir.interceptor.api.Interceptor
 import ca.uhn.fhir.interceptor.api.Pointcut
+import ca.uhn.fhir.parser.DataFormatException
 import ca.uhn.fhir.rest.api.EncodingEnum
 import ca.uhn.fhir.rest.api.MethodOutcome
 import ca.uhn.fhir.rest.api.server.RequestDetails
 import ca.uhn.fhir.rest.server.RestfulServerUtils
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException
-import org.apache.commons.io.IOUtils
 import org.hl7.fhir.instance.model.api.IBaseResource
 import org.hl7.fhir.r4.model.OperationOutcome
-import org.hl7.fhir.r4.model.Resource
 import org.slf4j.LoggerFactory
+import uk.nhs.england.fhirvalidator.configuration.FHIRServerProperties
 import uk.nhs.england.fhirvalidator.configuration.MessageProperties
-import java.io.BufferedReader
-import java.io.IOException
-import java.io.InputStreamReader
-import java.net.HttpURLConnection
-import java.net.URL
+import uk.nhs.england.fhirvalidator.provider.ValidateR4Provider
+import uk.nhs.england.fhirvalidator.util.createOperationOutcome
+import java.io.ByteArrayInputStream
+import java.net.InetAddress
+import java.net.URI
+import java.net.UnknownHostException
+import java.net.http.HttpClient
+import java.net.http.HttpRequest
+import java.net.http.HttpResponse
+import java.time.Duration
+import java.util.concurrent.CompletionException
 import jakarta.servlet.http.HttpServletRequest
 
 
 @Interceptor
-class ValidationInterceptor(val ctx : FhirContext, val messageProperties: MessageProperties)  {
+class ValidationInterceptor(val ctx : FhirContext,
+                            val messageProperties: MessageProperties,
+                            val fhirServerProperties: FHIRServerProperties,
+                            val validateR4Provider: ValidateR4Provider)  {
 
     private val log = LoggerFactory.getLogger("FHIRAudit")
 
+    private val remoteValidationUri: URI? = remoteValidationUri()
+
+    // Only needed for a separate validation server, connections are pooled and reused between requests
+    private val httpClient: HttpClient? = if (remoteValidationUri != null) {
+        HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(10))
+            .build()
+    } else null
+
 
     // Custom version of https://github.com/hapifhir/hapi-fhir/blob/master/hapi-fhir-server/src/main/java/ca/uhn/fhir/rest/server/interceptor/RequestValidatingInterceptor.java
     // To support remote service validation
@@ -94,80 +112,70 @@ class ValidationInterceptor(val ctx : FhirContext, val messageProperties: Messag
 
         val method = MethodOutcome()
         method.created = true
-        val opOutcome = OperationOutcome()
-
-        method.operationOutcome = opOutcome
-
-        val url = messageProperties.getValidationFhirServer()
-        var myUrl: URL? = null
-        val queryParams = ""
-        val path = "/FHIR/R4/\$validate"
-        myUrl = if (queryParams != null) {
-            URL("$url$path?$queryParams")
-        } else {
-            URL(url + path)
+        val client = httpClient
+        if (remoteValidationUri == null || client == null) {
+            // Validate in this process, the request is parsed once and there is no HTTP round trip
+            val opOutcome = try {
+                val resource = encoding.newParser(ctx).parseResource(ByteArrayInputStream(input))
+                validateR4Provider.validateAndRewrite(resource, null, false)
+            } catch (ex: DataFormatException) {
+                createOperationOutcome(ex.message ?: "Invalid resource", null)
+            }
+            method.operationOutcome = opOutcome
+            method.resource = opOutcome
+            return method
         }
-        var retry = 2
 
-        while (retry > 0) {
-            val conn = myUrl.openConnection() as HttpURLConnection
-            if (encoding.equals(EncodingEnum.XML)) {
-                conn.setRequestProperty("Content-Type", "application/fhir+xml")
-            } else {
-                conn.setRequestProperty("Content-Type", "application/fhir+json")
-            }
-            conn.setRequestProperty("Accept", "application/fhir+json")
-            conn.requestMethod = "POST"
-            conn.setDoOutput(true)
-           // val jsonInputString = ctx.newJsonParser().encodeResourceToString(request.inputStream)
+        val request = HttpRequest.newBuilder(remoteValidationUri)
+            .timeout(Duration.ofMinutes(2))
+            .header("Content-Type", if (encoding == EncodingEnum.XML) "application/fhir+xml" else "application/fhir+json")
+            .header("Accept", "application/fhir+json")
+            .POST(HttpRequest.BodyPublishers.ofByteArray(input))
+            .build()
+        var retry = 2
+        while (true) {
             try {
-                conn.getOutputStream().use { os ->
-
-                    os.write(input, 0, input.size)
+                // Error responses carry an OperationOutcome too, so the body is parsed whatever the status
+                val response = client.sendAsync(request, HttpResponse.BodyHandlers.ofInputStream()).join()
+                response.body().use {
+                    method.resource = ctx.newJsonParser().parseResource(it)
                 }
-                //conn.connect()
-                val `is` = InputStreamReader(conn.inputStream)
-                try {
-                    val rd = BufferedReader(`is`)
-                    val postedResource :Resource = ctx.newJsonParser().parseResource(IOUtils.toString(rd)) as Resource
-                    if (postedResource != null && postedResource is Resource) {
-                        method.resource = postedResource
-                    }
-                    return method
-                } finally {
-                    `is`.close()
-                }
-            }
-            catch (ex : IOException) {
-                val `is` = InputStreamReader(conn.errorStream)
-                try {
-                    val rd = BufferedReader(`is`)
-                    val postedResource: Resource = ctx.newJsonParser().parseResource(IOUtils.toString(rd)) as Resource
-                    if (postedResource != null && postedResource is Resource) {
-                        method.resource = postedResource
-                    }
-                    return method
-                }
-                catch (exOther: Exception) {
-                        throw ex
-                    } finally {
-                        `is`.close()
-                    }
-                }
-            catch (ex: Exception) {
+                return method
+            } catch (ex: CompletionException) {
                 retry--
-                if (ex.message != null) {
-                    if (ex.message!!.contains("401") || ex.message!!.contains("403")) {
-                        //this.authenticationResult = null
-                        if (retry < 1) throw UnprocessableEntityException(ex.message)
-                    }
-
-                } else {
-                    throw UnprocessableEntityException(ex.message)
-                }
+                if (retry < 1) throw UnprocessableEntityException(ex.cause?.message ?: ex.message)
+            } catch (ex: DataFormatException) {
+                throw UnprocessableEntityException("Invalid response from validation server: " + ex.message)
             }
         }
-        throw UnprocessableEntityException("Number of retries exhausted")
     }
-}
 
+    /**
+     * The validation server when it is a separate service, null when validation.fhirServer is this server
+     * (fhir.server.baseUrl, compared by scheme, host and port) or unset
+     */
+    private fun remoteValidationUri(): URI? {
+        val server = messageProperties.getValidationFhirServer()?.trimEnd('/')
+        if (server.isNullOrBlank()) return null
+        val uri = URI.create("$server/FHIR/R4/\$validate")
+        val self = URI.create(fhirServerProperties.server.baseUrl.trimEnd('/'))
+        return if (isSameServer(uri, self)) null else uri
+    }
+
+    private fun isSameServer(uri: URI, self: URI): Boolean {
+        if (!uri.scheme.equals(self.scheme, ignoreCase = true) || port(uri) != port(self)) return false
+        val host = uri.host ?: return false
+        val selfHost = self.host ?: return false
+        // localhost and 127.0.0.1 are the same server, but only on the same port
+        return host.equals(selfHost, ignoreCase = true) || (isLoopback(host) && isLoopback(selfHost))
+    }
+
+    private fun port(uri: URI): Int =
+        if (uri.port != -1) uri.port else if (uri.scheme.equals("https", ignoreCase = true)) 443 else 80
+
+    private fun isLoopback(host: String): Boolean = try {
+        InetAddress.getByName(host).isLoopbackAddress
+    } catch (ex: UnknownHostException) {
+        false
+    }
+}
@@ -0,0 +1,17 @@
+package uk.nhs.england.fhirvalidator.model
+
+import org.hl7.fhir.r4.model.OperationOutcome
+import java.time.Instant
+
+class AsyncValidationJob(
+    val id: String
+) {
+    enum class Status { QUEUED, RUNNING, COMPLETED, FAILED }
+
+    // outcome is set once the validation has finished (or failed)
+    data class State(val status: Status, val outcome: OperationOutcome? = null)
+
+    val submitted: Instant = Instant.now()
+    // Replaced as a whole, so a reader never sees an outcome with the status of an earlier state
+    @Volatile var state = State(Status.QUEUED)
+}
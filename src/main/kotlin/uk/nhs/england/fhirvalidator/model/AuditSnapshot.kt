@@ -0,0 +1,27 @@
+package uk.nhs.england.fhirvalidator.model
+
+import ca.uhn.fhir.rest.api.EncodingEnum
+import java.util.Date
+
+/**
+ * What is needed to audit a request, copied from the request on the request thread. The body is only kept for a
+ * QuestionnaireResponse HAPI has already read, it is only parsed when the AuditEvent is built.
+ */
+class AuditSnapshot(
+    val recorded: Date,
+    val method: String,
+    val scheme: String,
+    val serverName: String,
+    val pathInfo: String?,
+    val queryString: String?,
+    val resourceName: String?,
+    val odsCode: String?,
+    val ipAddress: String?,
+    val patientId: String?,
+    val encoding: EncodingEnum?,
+    val body: ByteArray?,
+    val size: Long,
+    // Set when the request failed
+    val exceptionMessage: String? = null,
+    val failed: Boolean = false
+)
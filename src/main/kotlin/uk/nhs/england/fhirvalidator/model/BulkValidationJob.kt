@@ -0,0 +1,20 @@
+package uk.nhs.england.fhirvalidator.model
+
+import java.time.Instant
+import java.util.concurrent.atomic.AtomicLong
+
+class BulkValidationJob(
+    val id: String,
+    val source: String
+) {
+    enum class Status { RUNNING, COMPLETED, FAILED }
+
+    val started: Instant = Instant.now()
+    @Volatile var finished: Instant? = null
+    @Volatile var status = Status.RUNNING
+    @Volatile var message: String? = null
+    val linesRead = AtomicLong()
+    val linesValidated = AtomicLong()
+    // Lines with at least one error or fatal issue
+    val linesWithErrors = AtomicLong()
+}
@@ -12,6 +12,7 @@ import org.hl7.fhir.r4.model.BooleanType
 import org.hl7.fhir.r4.model.CapabilityStatement
 import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.stereotype.Component
+import uk.nhs.england.fhirvalidator.service.ConformanceIndex
 import uk.nhs.england.fhirvalidator.service.ImplementationGuideParser
 import uk.nhs.england.fhirvalidator.service.oas.CapabilityStatementToOpenAPIConversion
 import java.nio.charset.StandardCharsets
@@ -22,7 +23,8 @@ import jakarta.servlet.http.HttpServletResponse
 @Component
 class CapabilityStatementProvider(@Qualifier("R4") private val fhirContext: FhirContext,
                                   private val oasParser : CapabilityStatementToOpenAPIConversion,
-                                  private val supportChain: ValidationSupportChain)  : IResourceProvider {
+                                  private val supportChain: ValidationSupportChain,
+                                  private val conformanceIndex: ConformanceIndex)  : IResourceProvider {
     /**
      * The getResourceType method comes from IResourceProvider, and must
      * be overridden to indicate what type of resource this provider
@@ -44,12 +46,9 @@ class CapabilityStatementProvider(@Qualifier("R4") private val fhirContext: Fhir
             if (resource != null) list.put(resource.url, resource)
             return list.values.toList()
         };
-        for (resource in supportChain.fetchAllConformanceResources()!!) {
-            if (resource is CapabilityStatement) {
-                val cs = resource as CapabilityStatement
-                if (list.get(cs.url) === null) {
-                    list.put(resource.url,resource)
-                }
+        for (resource in conformanceIndex.getResources(CapabilityStatement::class.java)) {
+            if (list.get(resource.url) === null) {
+                list.put(resource.url,resource)
             }
         }
         return list.values.toList()
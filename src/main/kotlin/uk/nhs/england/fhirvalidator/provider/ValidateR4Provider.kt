@@ -6,6 +6,7 @@ import ca.uhn.fhir.parser.DataFormatException
 import ca.uhn.fhir.rest.annotation.*
 import ca.uhn.fhir.rest.api.MethodOutcome
 import ca.uhn.fhir.rest.api.server.RequestDetails
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException
 import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException
 import ca.uhn.fhir.validation.FhirValidator
 import ca.uhn.fhir.validation.ValidationOptions
@@ -16,16 +17,34 @@ import org.hl7.fhir.r4.model.*
 import org.hl7.fhir.r4.model.OperationOutcome.OperationOutcomeIssueComponent
 import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.stereotype.Component
+import uk.nhs.england.fhirvalidator.configuration.ValidationProperties
 import uk.nhs.england.fhirvalidator.interceptor.CapabilityStatementApplier
+import uk.nhs.england.fhirvalidator.model.AsyncValidationJob
+import uk.nhs.england.fhirvalidator.service.AsyncValidator
+import uk.nhs.england.fhirvalidator.service.BulkValidator
+import uk.nhs.england.fhirvalidator.service.IssueRewriter
+import uk.nhs.england.fhirvalidator.service.StreamingBundleValidator
+import uk.nhs.england.fhirvalidator.service.TerminologyPrefetch
+import uk.nhs.england.fhirvalidator.service.ValidationResultCache
 import uk.nhs.england.fhirvalidator.service.interactions.FHIRDocument
 import uk.nhs.england.fhirvalidator.service.interactions.FHIRMessage
 import uk.nhs.england.fhirvalidator.service.interactions.FHIRRESTful
+import uk.nhs.england.fhirvalidator.util.countErrors
 import uk.nhs.england.fhirvalidator.util.createOperationOutcome
+import uk.nhs.england.fhirvalidator.util.limitErrors
 import java.net.URLDecoder
 import java.nio.charset.StandardCharsets
+import jakarta.annotation.PreDestroy
 import jakarta.servlet.http.HttpServletRequest
+import jakarta.servlet.http.HttpServletResponse
+import org.apache.commons.lang3.concurrent.BasicThreadFactory
 import org.hl7.fhir.r4.fhirpath.FHIRPathEngine
 import org.hl7.fhir.r4.model.Bundle.BundleType
+import java.util.Date
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
 
 
 @Component
@@ -33,13 +52,39 @@ class ValidateR4Provider (
     @Qualifier("R4") private val fhirContext: FhirContext,
     @Qualifier("SupportChain") private val supportChain: IValidationSupport,
     private val validator: FhirValidator,
+    @Qualifier("Structural") private val structuralValidator: FhirValidator,
     private val fhirMessage: FHIRMessage,
     private val capabilityStatementApplier: CapabilityStatementApplier,
     private val fhirDocumentApplier: FHIRDocument,
-    private val fhirRESTful: FHIRRESTful
+    private val fhirRESTful: FHIRRESTful,
+    private val validationProperties: ValidationProperties,
+    private val terminologyPrefetch: TerminologyPrefetch,
+    private val streamingBundleValidator: StreamingBundleValidator,
+    private val bulkValidator: BulkValidator,
+    private val asyncValidator: AsyncValidator,
+    private val issueRewriter: IssueRewriter,
+    private val validationResultCache: ValidationResultCache
 
 ) {
-    companion object : KLogging()
+    companion object : KLogging() {
+        // userData of a result from the structural check alone, terminology was not checked
+        private const val STRUCTURAL_ONLY = "validation.structuralOnly"
+        // A JSON or XML Parameters resource anywhere in the body, the body is then not validated as sent
+        private val PARAMETERS_BODY = Regex("\"resourceType\"\\s*:\\s*\"Parameters\"|<Parameters[\\s>]")
+    }
+
+    // Bounded pool shared by all requests for validating the inner bundles of a batch, null when running sequentially
+    private val bundleExecutor: ExecutorService? = if (validationProperties.bundleConcurrency > 1) {
+        Executors.newFixedThreadPool(
+            validationProperties.bundleConcurrency,
+            BasicThreadFactory.Builder().namingPattern("BundleValidation-%d").daemon(true).build()
+        )
+    } else null
+
+    @PreDestroy
+    fun shutdown() {
+        bundleExecutor?.shutdown()
+    }
 
     @Operation(name = "\$fhirpathEvaluate", idempotent = true)
     @Throws(Exception::class)
@@ -109,68 +154,153 @@ class ValidateR4Provider (
         var importProfile = false
         if (importProfileParam !== null && importProfileParam.equals("true")) importProfile = true
         if (profile!= null) profile = URLDecoder.decode(profile, StandardCharsets.UTF_8.name());
-        var operationOutcome : OperationOutcome? = null
+        val maxErrorsParam = servletRequest.getParameter("maxErrors")
+        val maxErrors = when {
+            maxErrorsParam != null -> maxErrorsParam.toIntOrNull()?.takeIf { it > 0 }
+                ?: throw UnprocessableEntityException("maxErrors must be a positive integer")
+            servletRequest.getParameter("_failFast") == "true" -> 1
+            else -> null
+        }
         if (resource == null && theRequestDetails.resource == null) throw UnprocessableEntityException("Not resource supplied to validation")
-        if (resource == null) {
-            // This should cope with Parameters resources being passed in
-            operationOutcome = parseAndValidateResource(theRequestDetails.resource, profile, importProfile)
+        // This should cope with Parameters resources being passed in
+        val inputResource = resource ?: theRequestDetails.resource
+        val requestBody = requestBody(theRequestDetails)
+        val methodOutcome = MethodOutcome()
+        val prefer = servletRequest.getHeader("Prefer")
+        if (prefer != null && prefer.contains("respond-async")) {
+            val job = asyncValidator.submit { validateAndRewrite(inputResource, profile, importProfile, maxErrors, requestBody) }
+            theRequestDetails.response.addHeader("Content-Location", theRequestDetails.fhirServerBase + "/\$validate-status?job=" + job.id)
+            methodOutcome.responseStatusCode = 202
+            methodOutcome.operationOutcome = createOperationOutcome(listOf(OperationOutcome.OperationOutcomeIssueComponent()
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setDiagnostics("Validation accepted, poll the Content-Location for the result")))
+            return methodOutcome
+        }
+        methodOutcome.operationOutcome = validateAndRewrite(inputResource, profile, importProfile, maxErrors, requestBody)
+        return methodOutcome
+    }
 
-        } else {
-            operationOutcome = parseAndValidateResource(resource, profile, importProfile)
+    /**
+     * The request body as text, null when it is (or may be) a Parameters resource wrapping the resource to validate
+     */
+    private fun requestBody(theRequestDetails: RequestDetails): String? {
+        val bytes = theRequestDetails.loadRequestContents() ?: return null
+        if (bytes.isEmpty()) return null
+        val body = String(bytes, StandardCharsets.UTF_8)
+        return if (PARAMETERS_BODY.containsMatchIn(body)) null else body
+    }
+
+    /**
+     * Result of an asynchronous $validate, 202 while the validation is queued or running
+     */
+    @Operation(name = "\$validate-status", idempotent = true, manualResponse = true)
+    fun validateStatus(
+        servletResponse: HttpServletResponse,
+        @OperationParam(name = "job") jobId: String
+    ) {
+        val job = asyncValidator.getJob(jobId) ?: throw ResourceNotFoundException("Unknown or expired validation job $jobId")
+        val state = job.state
+        val outcome = state.outcome
+        if (outcome == null) {
+            servletResponse.status = 202
+            servletResponse.setHeader("X-Progress", state.status.name.lowercase())
+            return
         }
-        val methodOutcome = MethodOutcome()
-    if (operationOutcome.hasIssue()) {
-    // Temp workaround for onto validation issues around workflow code
-        val newIssue = ArrayList<OperationOutcomeIssueComponent>()
-        for (issue in operationOutcome.issue) {
+        servletResponse.status = if (state.status == AsyncValidationJob.Status.FAILED) 500 else 200
+        servletResponse.contentType = "application/fhir+json"
+        servletResponse.characterEncoding = "UTF-8"
+        fhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToWriter(outcome, servletResponse.writer)
+        servletResponse.writer.flush()
+    }
 
-            if (issue.hasLocation()) {
-                val newLocs = ArrayList<StringType>()
-                issue.location.forEach { str ->
-                    if (str.value == null || !str.value.startsWith("Line")) newLocs.add(str)
-                }
-                issue.location = newLocs
+    /**
+     * @param maxErrors stop validating once this many errors are found, all issues are returned when null
+     * @param requestBody inputResource as sent, validated instead of encoding inputResource again when nothing
+     * changes it before validation
+     */
+    fun validateAndRewrite(inputResource: IBaseResource, profile: String?, importProfile: Boolean, maxErrors: Int? = null, requestBody: String? = null): OperationOutcome {
+        return validationResultCache.get(inputResource, profile, importProfile, maxErrors) {
+            val operationOutcome = parseAndValidateResource(inputResource, profile, importProfile, maxErrors, requestBody)
+            if (operationOutcome.hasIssue()) {
+                // With a budget the issues were rewritten before they were counted
+                if (maxErrors == null) issueRewriter.rewrite(operationOutcome)
+            } else {
+                // https://nhsd-jira.digital.nhs.uk/browse/IOPS-829
+                operationOutcome.issue.add(OperationOutcome.OperationOutcomeIssueComponent()
+                    .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                    .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                    .setDiagnostics("No issues detected during validation"))
             }
-            if (issue.hasDiagnostics() && issue.diagnostics.contains("404")) {
-                if(// issue.diagnostics.contains("https://fhir.nhs.uk/CodeSystem/Workflow-Code") ||
-                    issue.diagnostics.contains("https://fhir.nhs.uk/CodeSystem/NHSDataModelAndDictionary-treatment-function")) {
-                    issue.severity = OperationOutcome.IssueSeverity.INFORMATION
-                }
-                // This is to downgrade onto server issues to information.
-                if (!issue.diagnostics.contains(".uk") && (issue.diagnostics.contains("A usable code system with URL")
-                //    || issue.diagnostics.contains("LOINC is not indexed!")
-                        )) {
-                    // This is probably ontology server issue so degrade warning to information
-                    issue.severity = OperationOutcome.IssueSeverity.INFORMATION
-                }
+            operationOutcome
+        }
+    }
 
-            }
-            if (issue.diagnostics.contains("http://unstats.un.org/unsd/")
-                || issue.diagnostics.contains("note that the validator cannot judge what is suitable")
-                || issue.diagnostics.contains("A resource should have narrative for robust management")) {
-                issue.severity = OperationOutcome.IssueSeverity.INFORMATION
-            }
-            if (//!issue.diagnostics.contains("Validation failed for 'http://loinc.org")
-                //&&
-                !issue.diagnostics.contains("because \"theCodeSystem\"")
-                && !issue.diagnostics.contains("but you should check that it's not intended to match a slice")
-                && !issue.diagnostics.contains("because &quot;theCodeSystem&quot; is null")
-                && !issue.diagnostics.contains("A resource should have narrative for robust management" )
-                ) {
-                newIssue.add(issue)
+    /**
+     * Validates a large JSON Bundle entry by entry without reading the whole request into memory, issues are
+     * written to the response as each entry is validated. Checks needing the whole Bundle are not made.
+     */
+    @Operation(name = "\$validate-stream", manualRequest = true, manualResponse = true)
+    fun validateStream(
+        servletRequest: HttpServletRequest,
+        servletResponse: HttpServletResponse
+    ) {
+        var profile = servletRequest.getParameter("profile")
+        if (profile != null) profile = URLDecoder.decode(profile, StandardCharsets.UTF_8.name())
+        val importProfile = servletRequest.getParameter("imposeProfile") == "true"
+        servletResponse.contentType = "application/fhir+json"
+        servletResponse.characterEncoding = "UTF-8"
+        streamingBundleValidator.validate(servletRequest.inputStream, servletResponse.outputStream) { entry ->
+            val operationOutcome = validateResource(entry, profile, importProfile)
+            if (operationOutcome != null) issueRewriter.rewrite(operationOutcome)
+            operationOutcome
+        }
+    }
+
+    /**
+     * Validates NDJSON, uploaded or read from a file in validation.bulk.directory, with lines validated in parallel.
+     * Returns NDJSON, an OperationOutcome per line with the line number as its id. The job id returned in the
+     * X-Bulk-Validation-Job header can be passed to $validate-bulk-status to follow progress.
+     */
+    @Operation(name = "\$validate-bulk", manualRequest = true, manualResponse = true)
+    fun validateBulk(
+        servletRequest: HttpServletRequest,
+        servletResponse: HttpServletResponse
+    ) {
+        var profile = servletRequest.getParameter("profile")
+        if (profile != null) profile = URLDecoder.decode(profile, StandardCharsets.UTF_8.name())
+        val importProfile = servletRequest.getParameter("imposeProfile") == "true"
+        val file = servletRequest.getParameter("file")
+        val input = if (file != null) bulkValidator.openFile(file) else servletRequest.inputStream
+        val job = bulkValidator.newJob(file ?: "upload")
+        servletResponse.contentType = "application/fhir+ndjson"
+        servletResponse.characterEncoding = "UTF-8"
+        servletResponse.setHeader("X-Bulk-Validation-Job", job.id)
+        input.use {
+            bulkValidator.validate(job, it, servletResponse.outputStream) { resource ->
+                val operationOutcome = validateResource(resource, profile, importProfile)
+                if (operationOutcome != null) issueRewriter.rewrite(operationOutcome)
+                operationOutcome
             }
         }
-        operationOutcome.issue = newIssue
-    } else {
-        // https://nhsd-jira.digital.nhs.uk/browse/IOPS-829
-        operationOutcome.issue.add(OperationOutcome.OperationOutcomeIssueComponent()
-            .setCode(OperationOutcome.IssueType.INFORMATIONAL)
-            .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
-            .setDiagnostics("No issues detected during validation"))
     }
 
-        methodOutcome.operationOutcome = operationOutcome
-        return methodOutcome
+    @Operation(name = "\$validate-bulk-status", idempotent = true)
+    fun validateBulkStatus(
+        @OperationParam(name = "job") jobId: String
+    ): Parameters {
+        val job = bulkValidator.getJob(jobId) ?: throw ResourceNotFoundException("Unknown or expired bulk validation job $jobId")
+        val parameters = Parameters()
+        parameters.addParameter("job", job.id)
+        parameters.addParameter("source", job.source)
+        parameters.addParameter("status", CodeType(job.status.name.lowercase()))
+        parameters.addParameter().setName("started").value = InstantType(Date.from(job.started))
+        job.finished?.let { parameters.addParameter().setName("finished").value = InstantType(Date.from(it)) }
+        parameters.addParameter().setName("linesRead").value = IntegerType(job.linesRead.get().toInt())
+        parameters.addParameter().setName("linesValidated").value = IntegerType(job.linesValidated.get().toInt())
+        parameters.addParameter().setName("linesWithErrors").value = IntegerType(job.linesWithErrors.get().toInt())
+        job.message?.let { parameters.addParameter("message", it) }
+        return parameters
     }
 
     /* TODO HAPI ignores manual request and gives ContentType errors
@@ -185,10 +315,16 @@ class ValidateR4Provider (
 
      */
 
-    fun parseAndValidateResource(inputResource: IBaseResource, profile: String?, importProfile: Boolean?): OperationOutcome {
+    fun parseAndValidateResource(inputResource: IBaseResource, profile: String?, importProfile: Boolean?, maxErrors: Int? = null, requestBody: String? = null): OperationOutcome {
         return try {
             val resources = getResourcesToValidate(inputResource)
-            val operationOutcomeList = resources.map { validateResource(it, profile, importProfile) }
+            // The body only matches when the input is validated whole, not as its inner Bundles
+            val body = requestBody?.takeIf { resources.size == 1 && resources[0] === inputResource }
+            if (maxErrors != null) {
+                val (results, stopped) = validateResourcesWithBudget(resources, profile, importProfile, maxErrors, body)
+                return createOperationOutcome(limitErrors(results.flatMap { it.issue }, maxErrors, stopped))
+            }
+            val operationOutcomeList = validateResources(resources, profile, importProfile, body)
             val operationOutcomeIssues = operationOutcomeList.filterNotNull().flatMap { it.issue }
             return createOperationOutcome(operationOutcomeIssues)
         } catch (e: DataFormatException) {
@@ -197,7 +333,98 @@ class ValidateR4Provider (
         }
     }
 
-    fun validateResource(resource: IBaseResource, profile: String?,  importProfile: Boolean?): OperationOutcome? {
+    private fun validateResources(resources: List<IBaseResource>, profile: String?, importProfile: Boolean?, requestBody: String?): List<OperationOutcome?> {
+        val executor = bundleExecutor
+        if (executor == null || resources.size < 2) {
+            return resources.map { validateResource(it, profile, importProfile, requestBody = requestBody) }
+        }
+        // Results are collected in submission order so the issue order matches sequential validation
+        val futures = resources.map { executor.submit(Callable { validateResource(it, profile, importProfile) }) }
+        return futures.map {
+            try {
+                it.get()
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+        }
+    }
+
+    /**
+     * Validates one resource at a time until maxErrors errors are found, the remaining resources are not validated.
+     * Results are rewritten (validation.issueRules) before their errors are counted.
+     * @return the results, and whether any validation was skipped
+     */
+    private fun validateResourcesWithBudget(resources: List<IBaseResource>, profile: String?, importProfile: Boolean?, maxErrors: Int, requestBody: String?): Pair<List<OperationOutcome>, Boolean> {
+        val results = ArrayList<OperationOutcome>()
+        var errors = 0
+        var stopped = false
+        for (resource in resources) {
+            if (errors >= maxErrors) {
+                // Resources are left unvalidated
+                stopped = true
+                break
+            }
+            val result = validateResource(resource, profile, importProfile, maxErrors - errors, requestBody) ?: continue
+            if (result.getUserData(STRUCTURAL_ONLY) != null) stopped = true
+            issueRewriter.rewrite(result)
+            errors += countErrors(result.issue)
+            results.add(result)
+        }
+        return Pair(results, stopped)
+    }
+
+    /**
+     * With an error budget, the resource is first checked without terminology. When that alone uses the budget its
+     * errors are returned and the terminology server is not called. Otherwise the resource is validated again by the
+     * full validator, so a resource within the budget costs a structural pass more than without maxErrors.
+     *
+     * Whether the full validator would call the terminology server can't be told in advance (ValueSet bindings are
+     * checked against cache keys only known once the profile's binding is resolved), so the structural pass isn't
+     * skipped for resources whose codings are already cached.
+     */
+    private fun validateWithBudget(resource: IBaseResource, body: String?, options: ValidationOptions, maxErrors: Int?): OperationOutcome? {
+        if (maxErrors != null) {
+            val structural = validate(structuralValidator, resource, body, options)
+            if (structural != null) {
+                // Rewritten again with the rest of the result, so the rules' metric isn't counted here
+                issueRewriter.rewrite(structural, countHits = false)
+                if (countErrors(structural.issue) >= maxErrors) {
+                    structural.setUserData(STRUCTURAL_ONLY, true)
+                    return structural
+                }
+            }
+        }
+        terminologyPrefetch.prefetch(resource)
+        return validate(validator, resource, body, options)
+    }
+
+    /**
+     * FhirInstanceValidator works on text, a resource is encoded to JSON by the validator and parsed again. The body
+     * as sent is validated directly, skipping that encode.
+     */
+    private fun validate(fhirValidator: FhirValidator, resource: IBaseResource, body: String?, options: ValidationOptions): OperationOutcome? {
+        val result = if (body != null) fhirValidator.validateWithResult(body, options)
+            else fhirValidator.validateWithResult(resource, options)
+        return result.toOperationOutcome() as? OperationOutcome
+    }
+
+    /**
+     * meta.profile entries of the resource and, for a Bundle, its entries; the only places profiles are applied
+     */
+    private fun profileCount(resource: IBaseResource): Int {
+        fun count(it: IBaseResource?) = if (it is Resource && it.hasMeta()) it.meta.profile.size else 0
+        var profiles = count(resource)
+        if (resource is Bundle) resource.entry.forEach { profiles += count(it.resource) }
+        return profiles
+    }
+
+    /**
+     * @param requestBody the resource as sent, validated in its place unless profiles are applied to the resource
+     */
+    fun validateResource(resource: IBaseResource, profile: String?,  importProfile: Boolean?, maxErrors: Int? = null, requestBody: String? = null): OperationOutcome? {
+        val profilesBefore = if (requestBody != null) profileCount(resource) else 0
+        // Applied profiles are only on the parsed resource, so the body is only used when none were added
+        fun body() = requestBody?.takeIf { profileCount(resource) == profilesBefore }
         var additionalIssues = ArrayList<OperationOutcomeIssueComponent>()
         if (resource is Resource) {
             if (resource.hasMeta() && resource.meta.hasProfile()) {
@@ -220,8 +447,7 @@ class ValidateR4Provider (
         if (profile != null) {
             if (importProfile !== null && importProfile) capabilityStatementApplier.applyCapabilityStatementProfiles(resource, importProfile)
             if (importProfile !== null && importProfile && resource is Bundle) fhirDocumentApplier.applyDocumentDefinition(resource)
-            result = validator.validateWithResult(resource, ValidationOptions().addProfile(profile))
-                .toOperationOutcome() as? OperationOutcome
+            result = validateWithBudget(resource, body(), ValidationOptions().addProfile(profile), remainingErrors(maxErrors, additionalIssues))
         } else {
             if (resource is Bundle && resource.type.equals(BundleType.DOCUMENT)) {
                 // enforce local profiles in the FHIR document
@@ -241,7 +467,7 @@ class ValidateR4Provider (
                 }
             }
             if (importProfile !== null && importProfile && resource is Bundle) fhirDocumentApplier.applyDocumentDefinition(resource)
-            result = validator.validateWithResult(fhirContext.newJsonParser().setPrettyPrint(true).encodeResourceToString(resource)).toOperationOutcome() as? OperationOutcome
+            result = validateWithBudget(resource, body(), ValidationOptions(), remainingErrors(maxErrors, additionalIssues))
         }
         if (result !== null) {
             additionalIssues.forEach{
@@ -251,6 +477,10 @@ class ValidateR4Provider (
         return result
     }
 
+    // Errors already found by the message definition and CapabilityStatement checks count against the budget
+    private fun remainingErrors(maxErrors: Int?, additionalIssues: List<OperationOutcomeIssueComponent>): Int? =
+        maxErrors?.let { (it - countErrors(additionalIssues)).coerceAtLeast(1) }
+
     fun getResourcesToValidate(inputResource: IBaseResource?): List<IBaseResource> {
         if (inputResource == null) {
             return emptyList()
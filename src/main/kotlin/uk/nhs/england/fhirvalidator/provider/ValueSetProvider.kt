@@ -22,12 +22,11 @@ import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain
 import org.hl7.fhir.instance.model.api.IBaseBundle
 import org.hl7.fhir.r4.model.*
 import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.security.oauth2.client.OAuth2AuthorizedClientManager
 import org.springframework.stereotype.Component
 import uk.nhs.england.fhirvalidator.configuration.TerminologyValidationProperties
 import uk.nhs.england.fhirvalidator.interceptor.CognitoAuthInterceptor
 import uk.nhs.england.fhirvalidator.service.CodingSupport
-import uk.nhs.england.fhirvalidator.util.AccessTokenInterceptor
+import uk.nhs.england.fhirvalidator.service.ConformanceIndex
 import uk.nhs.england.fhirvalidator.util.FhirSystems
 import java.nio.charset.StandardCharsets
 import java.util.*
@@ -37,7 +36,8 @@ import jakarta.servlet.http.HttpServletRequest
 class ValueSetProvider (@Qualifier("R4") private val fhirContext: FhirContext,
                         private val supportChain: ValidationSupportChain,
                         private val codingSupport: CodingSupport,
-                        private val optionalAuthorizedClientManager: Optional<OAuth2AuthorizedClientManager>,
+                        private val conformanceIndex: ConformanceIndex,
+                        @Qualifier("TerminologyClient") private val optionalTerminologyClient: Optional<IGenericClient>,
                         private val terminologyValidationProperties: TerminologyValidationProperties
 ) : IResourceProvider {
     /**
@@ -50,23 +50,9 @@ class ValueSetProvider (@Qualifier("R4") private val fhirContext: FhirContext,
     }
     private val validationSupportContext = ValidationSupportContext(supportChain)
 
-    init {
-        if (optionalAuthorizedClientManager.isPresent) {
-            val authorizedClientManager = optionalAuthorizedClientManager.get()
-            val accessTokenInterceptor = AccessTokenInterceptor(authorizedClientManager)
-            provideClient(accessTokenInterceptor)
-        }
-    }
-
-    private fun provideClient(accessTokenInterceptor : AccessTokenInterceptor) {
-        val retVal: IGenericClient = fhirContext.newRestfulGenericClient(terminologyValidationProperties.url)
-        retVal.registerInterceptor(accessTokenInterceptor)
-        terminologyClient = retVal
-    }
-
     companion object : KLogging()
 
-    private var terminologyClient : IGenericClient? = null;
+    private val terminologyClient : IGenericClient? = optionalTerminologyClient.orElse(null)
 
 
 
@@ -75,36 +61,31 @@ class ValueSetProvider (@Qualifier("R4") private val fhirContext: FhirContext,
     fun search(@OptionalParam(name = ValueSet.SP_URL) url: TokenParam?): List<ValueSet> {
         val list = mutableListOf<ValueSet>()
         if (url == null) {
-            val resources = supportChain.fetchAllConformanceResources()
-            if (resources != null) {
-                resources.forEach{
-                    if (it is ValueSet) {
-                        val valueSet = it as ValueSet
-                        var found=false
-                        list.forEach{
-                            if (it.url === valueSet.url) found = true
-                        }
-                        // Remove US valuesets
-                        if (valueSet.hasJurisdiction() && valueSet.jurisdictionFirstRep.hasCoding()
-                            && valueSet.jurisdictionFirstRep.codingFirstRep.code.equals("US")) found = true
-                        // Only UK. This really should use jurisdiction
-                        if (!valueSet.url.contains(".uk")) found = true
-                        // Only add SNOMED. Will need to review this
-                        var isSnomed = false
-                        if (valueSet.hasCompose() && valueSet.compose.hasInclude()) {
-                            valueSet.compose.include.forEach{
-                                if (it.hasSystem() && it.system.equals(FhirSystems.SNOMED_CT)) isSnomed = true
-                            }
-                        }
-                        // remove expansion
-                        if (!found && isSnomed) {
-                            valueSet.expansion = null
-                            valueSet.text = null
-                            if (valueSet.id == null) valueSet.id = UUID.randomUUID().toString()
-                            list.add(valueSet)
-                        }
+            conformanceIndex.getResources(ValueSet::class.java).forEach{
+                val valueSet = it
+                var found=false
+                list.forEach{
+                    if (it.url === valueSet.url) found = true
+                }
+                // Remove US valuesets
+                if (valueSet.hasJurisdiction() && valueSet.jurisdictionFirstRep.hasCoding()
+                    && valueSet.jurisdictionFirstRep.codingFirstRep.code.equals("US")) found = true
+                // Only UK. This really should use jurisdiction
+                if (!valueSet.url.contains(".uk")) found = true
+                // Only add SNOMED. Will need to review this
+                var isSnomed = false
+                if (valueSet.hasCompose() && valueSet.compose.hasInclude()) {
+                    valueSet.compose.include.forEach{
+                        if (it.hasSystem() && it.system.equals(FhirSystems.SNOMED_CT)) isSnomed = true
                     }
                 }
+                // remove expansion
+                if (!found && isSnomed) {
+                    valueSet.expansion = null
+                    valueSet.text = null
+                    if (valueSet.id == null) valueSet.id = UUID.randomUUID().toString()
+                    list.add(valueSet)
+                }
             }
             return list
         }
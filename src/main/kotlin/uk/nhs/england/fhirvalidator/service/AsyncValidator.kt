@@ -0,0 +1,93 @@
+package uk.nhs.england.fhirvalidator.service
+
+import ca.uhn.fhir.rest.server.exceptions.UnclassifiedServerFailureException
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import io.micrometer.core.instrument.FunctionCounter
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.binder.MeterBinder
+import jakarta.annotation.PreDestroy
+import mu.KLogging
+import org.apache.commons.lang3.concurrent.BasicThreadFactory
+import org.hl7.fhir.r4.model.OperationOutcome
+import org.springframework.stereotype.Service
+import uk.nhs.england.fhirvalidator.configuration.ValidationProperties
+import uk.nhs.england.fhirvalidator.model.AsyncValidationJob
+import uk.nhs.england.fhirvalidator.util.createOperationOutcome
+import java.util.UUID
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.RejectedExecutionException
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Runs $validate requests sent with Prefer: respond-async on a fixed pool of workers, so a long validation doesn't
+ * hold a request thread. Waiting validations are bounded by validation.async.queueSize, requests beyond it are
+ * refused with 503. Results are kept in memory for validation.async.resultRetention after they finish.
+ */
+@Service
+class AsyncValidator(validationProperties: ValidationProperties) : MeterBinder {
+    companion object : KLogging()
+
+    private val async = validationProperties.async
+
+    private val executor = ThreadPoolExecutor(
+        async.workers.coerceAtLeast(1),
+        async.workers.coerceAtLeast(1),
+        0L,
+        TimeUnit.MILLISECONDS,
+        ArrayBlockingQueue(async.queueSize.coerceAtLeast(1)),
+        BasicThreadFactory.Builder().namingPattern("AsyncValidation-%d").daemon(true).build()
+    )
+
+    private val jobs: Cache<String, AsyncValidationJob> = Caffeine.newBuilder()
+        .expireAfterWrite(async.resultRetention)
+        .build()
+
+    private val rejected = AtomicLong()
+
+    @PreDestroy
+    fun shutdown() {
+        executor.shutdown()
+    }
+
+    fun submit(validation: () -> OperationOutcome): AsyncValidationJob {
+        val job = AsyncValidationJob(UUID.randomUUID().toString())
+        jobs.put(job.id, job)
+        try {
+            executor.execute {
+                job.state = AsyncValidationJob.State(AsyncValidationJob.Status.RUNNING)
+                // Written again so a job queued for longer than the retention period is not lost while it runs
+                jobs.put(job.id, job)
+                job.state = try {
+                    AsyncValidationJob.State(AsyncValidationJob.Status.COMPLETED, validation())
+                } catch (ex: Exception) {
+                    logger.error("Asynchronous validation {} failed", job.id, ex)
+                    AsyncValidationJob.State(AsyncValidationJob.Status.FAILED,
+                        createOperationOutcome(ex.message ?: "Validation failed", null))
+                }
+                // Kept for the retention period from when the result is ready
+                jobs.put(job.id, job)
+            }
+        } catch (ex: RejectedExecutionException) {
+            jobs.invalidate(job.id)
+            rejected.incrementAndGet()
+            throw UnclassifiedServerFailureException(503, "Too many validations are waiting, retry later")
+        }
+        return job
+    }
+
+    fun getJob(id: String): AsyncValidationJob? = jobs.getIfPresent(id)
+
+    override fun bindTo(registry: MeterRegistry) {
+        Gauge.builder("validation.async.queued", executor) { it.queue.size.toDouble() }
+            .register(registry)
+        Gauge.builder("validation.async.active", executor) { it.activeCount.toDouble() }
+            .register(registry)
+        FunctionCounter.builder("validation.async.rejected", rejected) { it.get().toDouble() }
+            .description("Asynchronous validations refused as the queue was full")
+            .register(registry)
+    }
+}
@@ -0,0 +1,242 @@
+package uk.nhs.england.fhirvalidator.service
+
+import ca.uhn.fhir.context.FhirContext
+import com.amazonaws.services.sqs.AmazonSQS
+import com.amazonaws.services.sqs.model.SendMessageBatchRequest
+import com.amazonaws.services.sqs.model.SendMessageBatchRequestEntry
+import io.micrometer.core.instrument.FunctionCounter
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.binder.MeterBinder
+import jakarta.annotation.PreDestroy
+import mu.KLogging
+import org.apache.commons.lang3.concurrent.BasicThreadFactory
+import org.hl7.fhir.r4.model.*
+import org.slf4j.LoggerFactory
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.stereotype.Service
+import uk.nhs.england.fhirvalidator.configuration.AuditProperties
+import uk.nhs.england.fhirvalidator.configuration.FHIRServerProperties
+import uk.nhs.england.fhirvalidator.configuration.MessageProperties
+import uk.nhs.england.fhirvalidator.model.AuditSnapshot
+import uk.nhs.england.fhirvalidator.util.FhirSystems
+import java.io.ByteArrayInputStream
+import java.nio.charset.StandardCharsets
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Builds, logs and sends the AuditEvents of requests away from the request thread.
+ *
+ * Requests are queued as snapshots and handled by a background thread every audit.flushInterval, the AuditEvents
+ * are sent to SQS with SendMessageBatch. When the queue is full requests are dropped rather than holding up the
+ * response.
+ */
+@Service
+class AuditEventPublisher(
+    @Qualifier("R4") private val ctx: FhirContext,
+    private val fhirServerProperties: FHIRServerProperties,
+    private val messageProperties: MessageProperties,
+    @Autowired(required = false) private val sqs: AmazonSQS?,
+    private val auditProperties: AuditProperties
+) : MeterBinder {
+    companion object : KLogging() {
+        private val QUESTIONNAIRE_RESPONSE = "QuestionnaireResponse".toByteArray(StandardCharsets.US_ASCII)
+    }
+
+    private val log = LoggerFactory.getLogger("FHIRAudit")
+
+    private val queue = ArrayBlockingQueue<AuditSnapshot>(auditProperties.queueSize.coerceAtLeast(1))
+    private val sent = AtomicLong()
+    private val dropped = AtomicLong()
+    private val failed = AtomicLong()
+    private val writer: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(
+        BasicThreadFactory.Builder().namingPattern("AuditEventPublisher-%d").daemon(true).build()
+    )
+
+    // Looked up on the first batch rather than for every message
+    private var queueUrl: String? = null
+
+    init {
+        writer.scheduleWithFixedDelay(
+            { flush() },
+            auditProperties.flushInterval.toMillis(),
+            auditProperties.flushInterval.toMillis(),
+            TimeUnit.MILLISECONDS
+        )
+    }
+
+    @PreDestroy
+    fun shutdown() {
+        writer.shutdown()
+        writer.awaitTermination(10, TimeUnit.SECONDS)
+        flush()
+    }
+
+    /**
+     * The part of a request body worth queueing, only a QuestionnaireResponse (which names the patient) within
+     * audit.maxBodySize is kept. Called on the request thread so is a byte search rather than a parse.
+     */
+    fun auditedBody(body: ByteArray?): ByteArray? {
+        if (body == null || body.isEmpty() || body.size > auditProperties.maxBodySize) return null
+        return if (contains(body, QUESTIONNAIRE_RESPONSE)) body else null
+    }
+
+    private fun contains(bytes: ByteArray, pattern: ByteArray): Boolean {
+        outer@ for (start in 0..bytes.size - pattern.size) {
+            for (offset in pattern.indices) {
+                if (bytes[start + offset] != pattern[offset]) continue@outer
+            }
+            return true
+        }
+        return false
+    }
+
+    fun publish(snapshot: AuditSnapshot) {
+        if (!queue.offer(snapshot)) dropped.incrementAndGet()
+    }
+
+    @Synchronized
+    fun flush() {
+        val pending = ArrayList<AuditSnapshot>()
+        queue.drainTo(pending)
+        if (pending.isEmpty()) return
+        val audits = ArrayList<String>(pending.size)
+        for (snapshot in pending) {
+            try {
+                val event = createAudit(snapshot)
+                val audit = ctx.newJsonParser().encodeResourceToString(event)
+                if (event.hasOutcome() && event.outcome != AuditEvent.AuditEventOutcome._0) {
+                    log.error(audit)
+                } else {
+                    log.info(audit)
+                }
+                audits.add(audit)
+            } catch (ex: Exception) {
+                failed.incrementAndGet()
+                logger.warn("Unable to audit {}: {}", snapshot.pathInfo, ex.message)
+            }
+        }
+        // Only logged when SQS is disabled, so not counted as sent
+        if (messageProperties.getAWSQueueEnabled() && sqs != null) {
+            audits.chunked(auditProperties.batchSize.coerceIn(1, 10)).forEach { send(sqs, it) }
+        }
+    }
+
+    private fun send(sqs: AmazonSQS, audits: List<String>) {
+        try {
+            val url = queueUrl ?: sqs.getQueueUrl(messageProperties.getAwsQueueName()).queueUrl.also { queueUrl = it }
+            val entries = audits.mapIndexed { index, audit ->
+                SendMessageBatchRequestEntry(index.toString(), audit).withDelaySeconds(5)
+            }
+            val result = sqs.sendMessageBatch(SendMessageBatchRequest(url, entries))
+            sent.addAndGet(result.successful.size.toLong())
+            if (result.failed.isNotEmpty()) {
+                failed.addAndGet(result.failed.size.toLong())
+                logger.warn("{} AuditEvents not accepted by SQS: {}", result.failed.size, result.failed.first().message)
+            }
+        } catch (ex: Exception) {
+            failed.addAndGet(audits.size.toLong())
+            logger.warn("Unable to send AuditEvents to SQS: {}", ex.message)
+        }
+    }
+
+    fun createAudit(snapshot: AuditSnapshot): AuditEvent {
+        val auditEvent = AuditEvent()
+        auditEvent.recorded = snapshot.recorded
+        when (snapshot.method) {
+            "GET" -> auditEvent.action = AuditEvent.AuditEventAction.R
+            "POST" -> auditEvent.action = AuditEvent.AuditEventAction.C
+            "PUT" -> auditEvent.action = AuditEvent.AuditEventAction.U
+            "PATCH" -> auditEvent.action = AuditEvent.AuditEventAction.U
+            "DEL", "DELETE" -> auditEvent.action = AuditEvent.AuditEventAction.D
+        }
+
+        // Entity
+        val entityComponent = auditEvent.addEntity()
+        var path = snapshot.scheme + "://" + snapshot.serverName + snapshot.pathInfo
+        if (path.contains("$")) auditEvent.action = AuditEvent.AuditEventAction.E
+        if (snapshot.queryString != null) path += "?" + snapshot.queryString
+        entityComponent.addDetail().setType("query").value = StringType(path)
+        if (snapshot.method == "GET") {
+            auditEvent.type = Coding().setSystem(FhirSystems.ISO_EHR_EVENTS).setCode("access")
+        } else {
+            auditEvent.type = Coding().setSystem(FhirSystems.ISO_EHR_EVENTS).setCode("transmit")
+            // Resources are not put in the audit (disabled 3/Oct/2022), only their size
+            if (snapshot.size >= 0) entityComponent.addDetail().setType("size").value = StringType(snapshot.size.toString())
+        }
+        entityComponent.type = Coding().setSystem(FhirSystems.FHIR_RESOURCE_TYPE).setCode(snapshot.resourceName)
+
+        // Source
+        // When identity is provided correct this
+        if (snapshot.odsCode != null) {
+            auditEvent.source.site = snapshot.odsCode
+        }
+        auditEvent.source.observer = Reference()
+            .setIdentifier(Identifier().setValue(snapshot.serverName))
+            .setDisplay(fhirServerProperties.server.name + " " + fhirServerProperties.server.version + " " + fhirServerProperties.server.baseUrl)
+            .setType("Device")
+
+        // Agent Application
+        val agentComponent = auditEvent.addAgent()
+        agentComponent.requestor = true
+        agentComponent.type = CodeableConcept(Coding().setSystem(FhirSystems.DICOM_AUDIT_ROLES).setCode("110150"))
+
+        /// Agent Patient about
+        // As before, the subject of a QuestionnaireResponse takes the place of the patient parameter
+        val patientId = questionnaireResponseSubject(snapshot) ?: snapshot.patientId
+        if (patientId != null) {
+            val patient = auditEvent.addAgent()
+            patient.requestor = false
+            patient.type = CodeableConcept(Coding().setSystem(FhirSystems.V3_ROLE_CLASS).setCode("PAT"))
+            if (patientId.startsWith("Patient/")) {
+                patient.who = Reference().setReference(patientId).setType("Patient")
+            } else {
+                patient.who = Reference().setType("Patient")
+                    .setIdentifier(Identifier().setSystem(FhirSystems.EMIS_PATIENT_IDENTIFIER).setValue(patientId))
+            }
+        }
+        if (snapshot.ipAddress != null) agentComponent.network.address = snapshot.ipAddress
+
+        if (snapshot.failed) {
+            if (snapshot.exceptionMessage != null) auditEvent.outcomeDesc = snapshot.exceptionMessage
+            auditEvent.outcome = AuditEvent.AuditEventOutcome._8
+        } else {
+            auditEvent.outcome = AuditEvent.AuditEventOutcome._0
+        }
+        return auditEvent
+    }
+
+    /**
+     * The subject of a QuestionnaireResponse request body, only these bodies are kept by [auditedBody]
+     */
+    private fun questionnaireResponseSubject(snapshot: AuditSnapshot): String? {
+        val body = snapshot.body ?: return null
+        val encoding = snapshot.encoding ?: return null
+        return try {
+            val resource = encoding.newParser(ctx).parseResource(ByteArrayInputStream(body))
+            if (resource is QuestionnaireResponse && resource.hasSubject()) resource.subject.reference else null
+        } catch (ex: Exception) {
+            logger.debug("Unable to parse audited request body: {}", ex.message)
+            null
+        }
+    }
+
+    override fun bindTo(registry: MeterRegistry) {
+        Gauge.builder("audit.queue.size", queue) { it.size.toDouble() }
+            .register(registry)
+        FunctionCounter.builder("audit.events.sent", sent, AtomicLong::toDouble)
+            .description("AuditEvents accepted by SQS")
+            .register(registry)
+        FunctionCounter.builder("audit.events.dropped", dropped, AtomicLong::toDouble)
+            .description("Requests not audited as the queue was full")
+            .register(registry)
+        FunctionCounter.builder("audit.events.failed", failed, AtomicLong::toDouble)
+            .description("AuditEvents which could not be built or sent to SQS")
+            .register(registry)
+    }
+}
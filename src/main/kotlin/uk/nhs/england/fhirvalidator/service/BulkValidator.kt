@@ -0,0 +1,144 @@
+package uk.nhs.england.fhirvalidator.service
+
+import ca.uhn.fhir.context.FhirContext
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import jakarta.annotation.PreDestroy
+import mu.KLogging
+import org.apache.commons.lang3.concurrent.BasicThreadFactory
+import org.hl7.fhir.instance.model.api.IBaseResource
+import org.hl7.fhir.r4.model.OperationOutcome
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.stereotype.Service
+import uk.nhs.england.fhirvalidator.configuration.ValidationProperties
+import uk.nhs.england.fhirvalidator.model.BulkValidationJob
+import uk.nhs.england.fhirvalidator.util.createOperationOutcome
+import java.io.InputStream
+import java.io.OutputStream
+import java.io.Writer
+import java.nio.charset.StandardCharsets
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.time.Instant
+import java.util.UUID
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+
+/**
+ * Validates NDJSON (one resource per line, as written by Bulk Data $export) with the lines validated in parallel.
+ * Results are written in line order, one OperationOutcome per line with the line number as its id.
+ *
+ * At most validation.bulk.queueSize lines are outstanding, reading stops until the oldest line is written, so a fast
+ * client is held back rather than the input being buffered. Progress of running and recent jobs is kept by job id.
+ */
+@Service
+class BulkValidator(
+    @Qualifier("R4") private val fhirContext: FhirContext,
+    validationProperties: ValidationProperties
+) {
+    companion object : KLogging() {
+        private const val FLUSH_LINES = 100
+    }
+
+    private val bulk = validationProperties.bulk
+    private val directory: Path? = bulk.directory?.let { Paths.get(it).toAbsolutePath().normalize() }
+
+    private val executor: ExecutorService = Executors.newFixedThreadPool(
+        bulk.concurrency.coerceAtLeast(1),
+        BasicThreadFactory.Builder().namingPattern("BulkValidation-%d").daemon(true).build()
+    )
+
+    private val jobs: Cache<String, BulkValidationJob> = Caffeine.newBuilder()
+        .expireAfterWrite(bulk.statusRetention)
+        .build()
+
+    @PreDestroy
+    fun shutdown() {
+        executor.shutdown()
+    }
+
+    fun newJob(source: String): BulkValidationJob {
+        val job = BulkValidationJob(UUID.randomUUID().toString(), source)
+        jobs.put(job.id, job)
+        return job
+    }
+
+    fun getJob(id: String): BulkValidationJob? = jobs.getIfPresent(id)
+
+    /**
+     * Opens an NDJSON file from validation.bulk.directory
+     */
+    fun openFile(file: String): InputStream {
+        val base = directory ?: throw UnprocessableEntityException("validation.bulk.directory is not configured, NDJSON must be uploaded")
+        val path = base.resolve(file).normalize()
+        if (!path.startsWith(base)) throw UnprocessableEntityException("File must be within validation.bulk.directory")
+        if (!Files.isRegularFile(path)) throw UnprocessableEntityException("File not found $file")
+        return Files.newInputStream(path)
+    }
+
+    /**
+     * @param validateResource validates the resource on a line, returning its issues
+     */
+    fun validate(
+        job: BulkValidationJob,
+        input: InputStream,
+        output: OutputStream,
+        validateResource: (IBaseResource) -> OperationOutcome?
+    ) {
+        val writer = output.bufferedWriter(StandardCharsets.UTF_8)
+        val pending = ArrayDeque<CompletableFuture<OperationOutcome>>()
+        try {
+            input.bufferedReader(StandardCharsets.UTF_8).useLines { lines ->
+                var lineNumber = 0
+                for (line in lines) {
+                    lineNumber++
+                    if (line.isBlank()) continue
+                    job.linesRead.incrementAndGet()
+                    val number = lineNumber
+                    pending.addLast(CompletableFuture.supplyAsync({ validateLine(number, line, validateResource) }, executor))
+                    // Write whatever has finished, waiting on the oldest line once the queue is full
+                    while (pending.isNotEmpty() && (pending.size >= bulk.queueSize || pending.first().isDone)) {
+                        write(job, pending.removeFirst().join(), writer)
+                    }
+                }
+            }
+            while (pending.isNotEmpty()) write(job, pending.removeFirst().join(), writer)
+            writer.flush()
+            job.status = BulkValidationJob.Status.COMPLETED
+        } catch (ex: Exception) {
+            pending.forEach { it.cancel(false) }
+            job.status = BulkValidationJob.Status.FAILED
+            job.message = ex.message
+            throw ex
+        } finally {
+            job.finished = Instant.now()
+            // Written again so statusRetention counts from when the job finished, not when it started
+            jobs.put(job.id, job)
+            logger.info("Bulk validation {} {}, {} of {} lines validated, {} with errors", job.id, job.status,
+                job.linesValidated.get(), job.linesRead.get(), job.linesWithErrors.get())
+        }
+    }
+
+    private fun validateLine(lineNumber: Int, line: String, validateResource: (IBaseResource) -> OperationOutcome?): OperationOutcome {
+        val outcome = try {
+            val resource = fhirContext.newJsonParser().parseResource(line)
+            validateResource(resource) ?: OperationOutcome()
+        } catch (ex: Exception) {
+            createOperationOutcome(ex.message ?: "Invalid resource", null)
+        }
+        outcome.id = lineNumber.toString()
+        return outcome
+    }
+
+    private fun write(job: BulkValidationJob, outcome: OperationOutcome, writer: Writer) {
+        fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToWriter(outcome, writer)
+        writer.write("\n")
+        if (outcome.issue.any { it.severity == OperationOutcome.IssueSeverity.ERROR || it.severity == OperationOutcome.IssueSeverity.FATAL }) {
+            job.linesWithErrors.incrementAndGet()
+        }
+        if (job.linesValidated.incrementAndGet() % FLUSH_LINES == 0L) writer.flush()
+    }
+}
@@ -16,11 +16,9 @@ import org.hl7.fhir.r4b.model.CodeableConcept
 import org.hl7.fhir.r4b.model.Coding
 import org.hl7.fhir.utilities.npm.NpmPackage
 import org.springframework.beans.factory.annotation.Qualifier
-import org.springframework.security.oauth2.client.OAuth2AuthorizedClientManager
 import org.springframework.stereotype.Service
 import uk.nhs.england.fhirvalidator.configuration.TerminologyValidationProperties
 import uk.nhs.england.fhirvalidator.shared.LookupCodeResultUK
-import uk.nhs.england.fhirvalidator.util.AccessTokenInterceptor
 import uk.nhs.england.fhirvalidator.util.FhirSystems
 import java.util.*
 import java.util.concurrent.TimeUnit
@@ -31,22 +29,11 @@ import kotlin.collections.ArrayList
 class CodingSupport(@Qualifier("R4") private val ctx: FhirContext?,
                     @Qualifier("SupportChain") private val supportChain: IValidationSupport,
                     private val terminologyValidationProperties: TerminologyValidationProperties,
-                    optionalAuthorizedClientManager: Optional<OAuth2AuthorizedClientManager>,
+                    @Qualifier("TerminologyClient") private val optionalTerminologyClient: Optional<IGenericClient>,
                     private val validationSupportContext : ValidationSupportContext
 ) {
 
 
-    private val myClientInterceptors: MutableList<Any?> = ArrayList()
-
-    init {
-        if (optionalAuthorizedClientManager.isPresent) {
-            val authorizedClientManager = optionalAuthorizedClientManager.get()
-            val accessTokenInterceptor = AccessTokenInterceptor(authorizedClientManager)
-            myClientInterceptors.add(accessTokenInterceptor)
-        }
-    }
-
-
     var cacheCoding: Cache<String, IValidationSupport.LookupCodeResult> = Caffeine.newBuilder()
         .expireAfterWrite(12, TimeUnit.HOURS)
         .maximumSize(5000)
@@ -309,14 +296,7 @@ class CodingSupport(@Qualifier("R4") private val ctx: FhirContext?,
     }
 
     private fun provideClient(): IGenericClient? {
-        val retVal: IGenericClient? = this.ctx?.newRestfulGenericClient(terminologyValidationProperties.url)
-        if (retVal != null) {
-        val var2: Iterator<*> = this.myClientInterceptors.iterator()
-        while (var2.hasNext()) {
-            val next = var2.next()!!
-            retVal.registerInterceptor(next)
-        } }
-        return retVal
+        return optionalTerminologyClient.orElse(null)
     }
 
 
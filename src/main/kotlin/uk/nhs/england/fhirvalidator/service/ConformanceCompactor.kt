@@ -0,0 +1,149 @@
+package uk.nhs.england.fhirvalidator.service
+
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.binder.MeterBinder
+import mu.KLogging
+import org.hl7.fhir.r4.model.Base
+import org.hl7.fhir.r4.model.ElementDefinition
+import org.hl7.fhir.r4.model.PrimitiveType
+import org.hl7.fhir.r4.model.StructureDefinition
+import org.springframework.stereotype.Service
+import java.lang.management.ManagementFactory
+import java.time.Duration
+import java.time.Instant
+import java.util.Collections
+import java.util.IdentityHashMap
+
+/**
+ * Shrinks the R4 StructureDefinitions held by the validation support chain once their snapshots are generated.
+ * Derived profiles repeat most of their base's snapshot, so identical ElementDefinitions are shared between
+ * snapshots, and the strings which repeat across profiles (paths, ids, type codes, canonicals, descriptions) are
+ * replaced by a single shared copy.
+ *
+ * Only those R4 copies are compacted. The instance validator converts each profile it uses to its own R5 copy,
+ * which is left as it is, so the saving is limited to the R4 copies. It is measured as the drop in used heap (after
+ * a full GC on each side) across [compact], which includes anything else released or allocated meanwhile.
+ *
+ * Shared elements must not be modified afterwards, any change is seen by every profile sharing the element. That
+ * includes userData, which isn't compared, so a profile's userData on a shared element is that of the first profile
+ * the element was found in.
+ */
+@Service
+class ConformanceCompactor : MeterBinder {
+    companion object : KLogging()
+
+    private val memory = ManagementFactory.getMemoryMXBean()
+    private val strings = HashMap<String, String>()
+    @Volatile private var structureDefinitions = 0
+    @Volatile private var uniqueStrings = 0L
+    @Volatile private var elements = 0L
+    @Volatile private var sharedElements = 0L
+    @Volatile private var sharedStrings = 0L
+    @Volatile private var releasedBytes = 0L
+
+    @Synchronized
+    fun compact(structureDefinitions: Collection<StructureDefinition>) {
+        val usedBefore = usedHeapAfterGc()
+        val start = Instant.now()
+        val distinct = Collections.newSetFromMap(IdentityHashMap<StructureDefinition, Boolean>())
+        distinct.addAll(structureDefinitions)
+        // By id and structural hash, so equalsDeep is only needed to rule out a hash collision
+        val elementsByHash = HashMap<Pair<String, Int>, MutableList<ElementDefinition>>()
+        for (structureDefinition in distinct) {
+            if (!structureDefinition.hasSnapshot()) continue
+            val snapshotElements = structureDefinition.snapshot.element
+            for (index in snapshotElements.indices) {
+                val element = snapshotElements[index]
+                elements++
+                val key = element.id ?: element.path ?: continue
+                val candidates = elementsByHash.getOrPut(Pair(key, structuralHash(element))) { ArrayList(1) }
+                val shared = candidates.firstOrNull { it === element || it.equalsDeep(element) }
+                if (shared == null) {
+                    candidates.add(element)
+                } else if (shared !== element) {
+                    snapshotElements[index] = shared
+                    sharedElements++
+                }
+            }
+        }
+        val visited = Collections.newSetFromMap(IdentityHashMap<ElementDefinition, Boolean>())
+        for (structureDefinition in distinct) {
+            internStrings(structureDefinition, visited)
+        }
+        this.structureDefinitions += distinct.size
+        uniqueStrings += strings.size
+        // Only needed while compacting, the shared copies are referenced by the resources
+        strings.clear()
+        val elapsed = Duration.between(start, Instant.now())
+        val released = usedBefore - usedHeapAfterGc()
+        releasedBytes += released
+        logger.info("Compacted {} StructureDefinitions in {} ms, {} of {} snapshot elements shared, {} strings shared, used heap {} MB lower",
+            distinct.size, elapsed.toMillis(), sharedElements, elements, sharedStrings, released / (1024 * 1024))
+    }
+
+    private fun usedHeapAfterGc(): Long {
+        memory.gc()
+        return memory.heapMemoryUsage.used
+    }
+
+    /**
+     * Hash of the element's content, elements which are equalsDeep have the same hash
+     */
+    private fun structuralHash(base: Base): Int {
+        if (base is PrimitiveType<*>) return base.asStringValue()?.hashCode() ?: 0
+        var hash = base.fhirType().hashCode()
+        for (property in base.children()) {
+            if (!property.hasValues()) continue
+            hash = 31 * hash + property.name.hashCode()
+            for (value in property.values) {
+                hash = 31 * hash + structuralHash(value)
+            }
+        }
+        return hash
+    }
+
+    private fun internStrings(base: Base, visited: MutableSet<ElementDefinition>) {
+        if (base is ElementDefinition && !visited.add(base)) return
+        if (base is PrimitiveType<*>) {
+            val value = base.value
+            if (value is String) {
+                @Suppress("UNCHECKED_CAST")
+                (base as PrimitiveType<String>).value = intern(value)
+            }
+            return
+        }
+        for (property in base.children()) {
+            for (value in property.values) {
+                internStrings(value, visited)
+            }
+        }
+    }
+
+    private fun intern(value: String): String {
+        val existing = strings.putIfAbsent(value, value) ?: return value
+        if (existing !== value) sharedStrings++
+        return existing
+    }
+
+    override fun bindTo(registry: MeterRegistry) {
+        Gauge.builder("conformance.store.structuredefinitions", this) { it.structureDefinitions.toDouble() }
+            .register(registry)
+        Gauge.builder("conformance.store.elements", this) { it.elements.toDouble() }
+            .tag("state", "total")
+            .register(registry)
+        Gauge.builder("conformance.store.elements", this) { it.sharedElements.toDouble() }
+            .tag("state", "shared")
+            .register(registry)
+        Gauge.builder("conformance.store.strings", this) { it.uniqueStrings.toDouble() }
+            .tag("state", "unique")
+            .register(registry)
+        Gauge.builder("conformance.store.strings", this) { it.sharedStrings.toDouble() }
+            .tag("state", "shared")
+            .register(registry)
+        Gauge.builder("conformance.store.heap.released", this) { it.releasedBytes.toDouble() }
+            .description("Drop in used heap, after a full GC, across compacting the R4 StructureDefinitions")
+            .baseUnit("bytes")
+            .register(registry)
+    }
+}
@@ -0,0 +1,87 @@
+package uk.nhs.england.fhirvalidator.service
+
+import ca.uhn.fhir.context.support.IValidationSupport
+import mu.KLogging
+import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain
+import org.hl7.fhir.instance.model.api.IBaseResource
+import org.hl7.fhir.r4.model.MetadataResource
+import org.hl7.fhir.r4.model.OperationDefinition
+import org.hl7.fhir.r4.model.SearchParameter
+import org.hl7.fhir.r4.model.ValueSet
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.stereotype.Service
+import uk.nhs.england.fhirvalidator.shared.PrePopulatedValidationSupport
+import java.time.Duration
+import java.time.Instant
+import java.util.Collections
+import java.util.IdentityHashMap
+
+/**
+ * The conformance resources of the support chain indexed by type + url, type + code (SearchParameter and
+ * OperationDefinition) and type + name, built once at startup instead of scanning fetchAllConformanceResources
+ * on every lookup.
+ *
+ * Lookups return every match in chain order, callers pick first or last as they did when scanning. The lazily
+ * parsed CodeSystems and ValueSets of the IG packages are not indexed, they are fetched through the chain by url.
+ */
+@Service
+class ConformanceIndex(@Qualifier("SupportChain") private val supportChain: ValidationSupportChain) {
+    companion object : KLogging()
+
+    private val byType = HashMap<String, MutableList<IBaseResource>>()
+    private val byUrl = HashMap<String, MutableList<IBaseResource>>()
+    private val byCode = HashMap<String, MutableList<IBaseResource>>()
+    private val byName = HashMap<String, MutableList<IBaseResource>>()
+
+    // Listing every ValueSet needs the lazy ones parsed, so this is only done when first asked for
+    private val valueSets: List<ValueSet> by lazy {
+        supportChain.fetchAllConformanceResources()?.filterIsInstance<ValueSet>() ?: emptyList()
+    }
+
+    init {
+        val start = Instant.now()
+        val seen = Collections.newSetFromMap(IdentityHashMap<IBaseResource, Boolean>())
+        for (support in supportChain.validationSupports) {
+            for (resource in loadedResources(support)) {
+                // Resources are held under each of their urls, so appear more than once
+                if (!seen.add(resource)) continue
+                val type = resource.fhirType()
+                byType.getOrPut(type) { ArrayList() }.add(resource)
+                if (resource is MetadataResource) {
+                    if (resource.hasUrl()) add(byUrl, type, resource.url, resource)
+                    if (resource.hasName()) add(byName, type, resource.name, resource)
+                }
+                when (resource) {
+                    is SearchParameter -> if (resource.hasCode()) add(byCode, type, resource.code, resource)
+                    is OperationDefinition -> if (resource.hasCode()) add(byCode, type, resource.code, resource)
+                }
+            }
+        }
+        logger.info("Indexed {} conformance resources in {} ms", seen.size, Duration.between(start, Instant.now()).toMillis())
+    }
+
+    fun <T : IBaseResource> getResources(type: Class<T>): List<T> =
+        if (type == ValueSet::class.java) valueSets.map(type::cast) else find(byType, type, null)
+
+    fun <T : IBaseResource> getByUrl(type: Class<T>, url: String): List<T> = find(byUrl, type, url)
+
+    fun <T : IBaseResource> getByCode(type: Class<T>, code: String): List<T> = find(byCode, type, code)
+
+    fun <T : IBaseResource> getByName(type: Class<T>, name: String): List<T> = find(byName, type, name)
+
+    private fun loadedResources(support: IValidationSupport): List<IBaseResource> {
+        if (support is PrePopulatedValidationSupport) return support.fetchLoadedConformanceResources()
+        return support.fetchAllConformanceResources() ?: emptyList()
+    }
+
+    private fun add(index: MutableMap<String, MutableList<IBaseResource>>, type: String, key: String, resource: IBaseResource) {
+        index.getOrPut(key(type, key)) { ArrayList(1) }.add(resource)
+    }
+
+    private fun <T : IBaseResource> find(index: Map<String, List<IBaseResource>>, type: Class<T>, key: String?): List<T> {
+        val resources = index[if (key == null) type.simpleName else key(type.simpleName, key)] ?: return emptyList()
+        return resources.filterIsInstance(type)
+    }
+
+    private fun key(type: String, key: String) = "$type|$key"
+}
@@ -0,0 +1,335 @@
+package uk.nhs.england.fhirvalidator.service
+
+import ca.uhn.fhir.context.FhirContext
+import ca.uhn.fhir.context.support.IValidationSupport
+import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.databind.DeserializationFeature
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import com.fasterxml.jackson.module.kotlin.readValue
+import io.micrometer.core.instrument.FunctionCounter
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.binder.MeterBinder
+import mu.KLogging
+import org.apache.commons.lang3.concurrent.BasicThreadFactory
+import org.hl7.fhir.r4.model.Parameters
+import org.hl7.fhir.r4.model.ValueSet
+import uk.nhs.england.fhirvalidator.configuration.TerminologyValidationProperties
+import uk.nhs.england.fhirvalidator.shared.LookupCodeResultUK
+import uk.nhs.england.fhirvalidator.shared.TerminologyCacheKey
+import uk.nhs.england.fhirvalidator.shared.TerminologyCacheStore
+import java.io.Closeable
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.nio.file.StandardOpenOption
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Terminology results kept on disk as one append-only NDJSON file per cache, so a restarted validator starts with
+ * the results of the previous one.
+ *
+ * Results are queued and appended by a background thread (write-behind), when the queue is full results are dropped
+ * rather than holding up validation. Every entry records the code system version which produced it; when loading,
+ * only the newest entry for each key from the newest version seen for each code system (and younger than the cache
+ * expiry) is kept. The files are compacted to those entries at startup and every `compactInterval` after that.
+ */
+class FileTerminologyCacheStore(
+    private val fhirContext: FhirContext,
+    private val cacheProperties: TerminologyValidationProperties.Cache
+) : TerminologyCacheStore, MeterBinder, Closeable {
+
+    companion object : KLogging() {
+        private const val VALIDATE_CODE = "validateCode"
+        private const val LOOKUP_CODE = "lookupCode"
+        private const val EXPAND_VALUE_SET = "expandValueSet"
+    }
+
+    private val persistence = cacheProperties.persistence
+    private val directory: Path = Paths.get(persistence.directory!!)
+    private val objectMapper = jacksonObjectMapper()
+        .setSerializationInclusion(JsonInclude.Include.NON_NULL)
+        .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false)
+    private val queue = ArrayBlockingQueue<Pending>(persistence.queueSize)
+    private val written = AtomicLong()
+    private val dropped = AtomicLong()
+    private val loaded = AtomicLong()
+    private val writer: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor(
+        BasicThreadFactory.Builder().namingPattern("TerminologyCacheStore-%d").daemon(true).build()
+    )
+
+    init {
+        Files.createDirectories(directory)
+        writer.scheduleWithFixedDelay(
+            { flush() },
+            persistence.flushInterval.toMillis(),
+            persistence.flushInterval.toMillis(),
+            TimeUnit.MILLISECONDS
+        )
+        writer.scheduleWithFixedDelay(
+            { compactAll() },
+            persistence.compactInterval.toMillis(),
+            persistence.compactInterval.toMillis(),
+            TimeUnit.MILLISECONDS
+        )
+    }
+
+    private class Pending(val cache: String, val entry: StoredEntry)
+
+    data class StoredKey(
+        val operation: TerminologyCacheKey.Operation? = null,
+        val system: String? = null,
+        val code: String? = null,
+        val display: String? = null,
+        val valueSetUrl: String? = null,
+        val inferSystem: Boolean = false
+    )
+
+    data class StoredIssue(
+        val message: String? = null,
+        val severity: IValidationSupport.IssueSeverity? = null,
+        val code: IValidationSupport.CodeValidationIssueCode? = null,
+        val coding: IValidationSupport.CodeValidationIssueCoding? = null
+    )
+
+    data class StoredCodeValidation(
+        val code: String? = null,
+        val display: String? = null,
+        val codeSystemName: String? = null,
+        val codeSystemVersion: String? = null,
+        val severity: IValidationSupport.IssueSeverity? = null,
+        val message: String? = null,
+        val issues: List<StoredIssue>? = null
+    )
+
+    /**
+     * One line of a store file. [system] and [version] identify the code system version the result came from,
+     * [resource] holds the $lookup Parameters or the expanded ValueSet as FHIR JSON.
+     */
+    data class StoredEntry(
+        val key: StoredKey? = null,
+        val expansionKey: String? = null,
+        val system: String? = null,
+        val version: String? = null,
+        val written: Long = 0,
+        val codeValidation: StoredCodeValidation? = null,
+        val resource: String? = null
+    )
+
+    override fun storeCodeValidation(theKey: TerminologyCacheKey, theResult: IValidationSupport.CodeValidationResult) {
+        val codeValidation = StoredCodeValidation(
+            code = theResult.code,
+            display = theResult.display,
+            codeSystemName = theResult.codeSystemName,
+            codeSystemVersion = theResult.codeSystemVersion,
+            severity = theResult.severity,
+            message = theResult.message,
+            issues = theResult.codeValidationIssues?.map { StoredIssue(it.message, it.severity, it.code, it.coding) }
+        )
+        enqueue(VALIDATE_CODE, StoredEntry(
+            key = toStoredKey(theKey),
+            system = theKey.system,
+            version = theResult.codeSystemVersion,
+            written = System.currentTimeMillis(),
+            codeValidation = codeValidation
+        ))
+    }
+
+    override fun storeLookupCode(theKey: TerminologyCacheKey, theResult: IValidationSupport.LookupCodeResult) {
+        // Only remote lookups keep the response they were built from, which is what is stored
+        if (theResult !is LookupCodeResultUK || theResult.originalParameters == null) return
+        enqueue(LOOKUP_CODE, StoredEntry(
+            key = toStoredKey(theKey),
+            system = theKey.system,
+            version = theResult.codeSystemVersion,
+            written = System.currentTimeMillis(),
+            resource = fhirContext.newJsonParser().encodeResourceToString(theResult.originalParameters)
+        ))
+    }
+
+    override fun storeExpansion(theKey: String, theOutcome: IValidationSupport.ValueSetExpansionOutcome) {
+        val valueSet = theOutcome.valueSet
+        if (theOutcome.error != null || valueSet !is ValueSet) return
+        // The expansion reports the code system version it used as a "system|version" parameter
+        val systemVersion = valueSet.expansion.parameter
+            .firstOrNull { it.name == "version" && it.hasValue() }
+            ?.value?.primitiveValue()
+        enqueue(EXPAND_VALUE_SET, StoredEntry(
+            expansionKey = theKey,
+            system = systemVersion?.substringBefore('|'),
+            version = systemVersion?.substringAfter('|', ""),
+            written = System.currentTimeMillis(),
+            resource = fhirContext.newJsonParser().encodeResourceToString(valueSet)
+        ))
+    }
+
+    private fun enqueue(cache: String, entry: StoredEntry) {
+        if (!queue.offer(Pending(cache, entry))) dropped.incrementAndGet()
+    }
+
+    private fun toStoredKey(key: TerminologyCacheKey) =
+        StoredKey(key.operation, key.system, key.code, key.display, key.valueSetUrl, key.isInferSystem)
+
+    @Synchronized
+    fun flush() {
+        val pending = ArrayList<Pending>()
+        queue.drainTo(pending)
+        if (pending.isEmpty()) return
+        try {
+            for ((cache, entries) in pending.groupBy { it.cache }) {
+                Files.newBufferedWriter(fileFor(cache), StandardOpenOption.CREATE, StandardOpenOption.APPEND).use { out ->
+                    for (pendingEntry in entries) {
+                        out.write(objectMapper.writeValueAsString(pendingEntry.entry))
+                        out.newLine()
+                    }
+                }
+            }
+            written.addAndGet(pending.size.toLong())
+        } catch (ex: Exception) {
+            dropped.addAndGet(pending.size.toLong())
+            logger.warn("Unable to write terminology cache store: {}", ex.message)
+        }
+    }
+
+    @Synchronized
+    override fun load(theLoader: TerminologyCacheStore.Loader) {
+        loadFile(VALIDATE_CODE, cacheProperties.validateCode.expireAfterWrite.toMillis()) { entry ->
+            if (entry.key != null && entry.codeValidation != null) {
+                theLoader.codeValidation(toKey(entry.key), toCodeValidationResult(entry.codeValidation), entry.written)
+            }
+        }
+        loadFile(LOOKUP_CODE, cacheProperties.lookupCode.expireAfterWrite.toMillis()) { entry ->
+            if (entry.key != null && entry.resource != null) {
+                val parameters = fhirContext.newJsonParser().parseResource(Parameters::class.java, entry.resource)
+                theLoader.lookupCode(toKey(entry.key), LookupCodeResultUK.fromParameters(parameters), entry.written)
+            }
+        }
+        loadFile(EXPAND_VALUE_SET, cacheProperties.expandValueSet.expireAfterWrite.toMillis()) { entry ->
+            if (entry.expansionKey != null && entry.resource != null) {
+                val valueSet = fhirContext.newJsonParser().parseResource(ValueSet::class.java, entry.resource)
+                theLoader.expansion(entry.expansionKey, IValidationSupport.ValueSetExpansionOutcome(valueSet), entry.written)
+            }
+        }
+    }
+
+    /**
+     * Drops expired, superseded and older code system version entries from the files, so they don't grow without
+     * limit between restarts
+     */
+    @Synchronized
+    fun compactAll() {
+        try {
+            compactFile(VALIDATE_CODE, cacheProperties.validateCode.expireAfterWrite.toMillis())
+            compactFile(LOOKUP_CODE, cacheProperties.lookupCode.expireAfterWrite.toMillis())
+            compactFile(EXPAND_VALUE_SET, cacheProperties.expandValueSet.expireAfterWrite.toMillis())
+        } catch (ex: Exception) {
+            logger.warn("Unable to compact terminology cache store: {}", ex.message)
+        }
+    }
+
+    private fun compactFile(cache: String, maxAgeMillis: Long) {
+        val file = fileFor(cache)
+        if (!Files.exists(file)) return
+        val (live, total) = readLive(cache, file, maxAgeMillis)
+        compact(file, live)
+        logger.debug("Compacted {} {} entries to {}", total, cache, live.size)
+    }
+
+    private fun loadFile(cache: String, maxAgeMillis: Long, consumer: (StoredEntry) -> Unit) {
+        val file = fileFor(cache)
+        if (!Files.exists(file)) return
+        val (live, total) = readLive(cache, file, maxAgeMillis)
+        for (entry in live) {
+            try {
+                consumer(entry)
+                loaded.incrementAndGet()
+            } catch (ex: Exception) {
+                logger.debug("Skipping unusable {} entry: {}", cache, ex.message)
+            }
+        }
+        compact(file, live)
+        logger.info("Loaded {} of {} stored {} entries", live.size, total, cache)
+    }
+
+    /**
+     * @return the entries still worth keeping and the number of entries read
+     */
+    private fun readLive(cache: String, file: Path, maxAgeMillis: Long): Pair<List<StoredEntry>, Int> {
+        val oldest = System.currentTimeMillis() - maxAgeMillis
+        val entries = ArrayList<StoredEntry>()
+        Files.newBufferedReader(file).use { reader ->
+            reader.lineSequence().forEach { line ->
+                try {
+                    val entry = objectMapper.readValue<StoredEntry>(line)
+                    if (entry.written >= oldest) entries.add(entry)
+                } catch (ex: Exception) {
+                    // e.g. a line cut short when the previous instance stopped
+                    logger.debug("Skipping unreadable {} entry", cache)
+                }
+            }
+        }
+        // Newest version of each code system, results from an older release are not loaded
+        val currentVersions = HashMap<String, StoredEntry>()
+        for (entry in entries) {
+            if (entry.system == null || entry.version.isNullOrEmpty()) continue
+            val current = currentVersions[entry.system]
+            if (current == null || entry.written > current.written) currentVersions[entry.system] = entry
+        }
+        // Newest entry for each key, the same result is stored again once it has expired from the cache
+        val newest = LinkedHashMap<Any, StoredEntry>()
+        for (entry in entries) {
+            val current = if (entry.system == null || entry.version.isNullOrEmpty()) null else currentVersions[entry.system]
+            if (current != null && current.version != entry.version) continue
+            val key: Any = entry.key ?: entry.expansionKey ?: continue
+            val previous = newest[key]
+            if (previous == null || entry.written >= previous.written) newest[key] = entry
+        }
+        return Pair(ArrayList(newest.values), entries.size)
+    }
+
+    private fun compact(file: Path, live: List<StoredEntry>) {
+        val temp = file.resolveSibling(file.fileName.toString() + ".tmp")
+        Files.newBufferedWriter(temp).use { out ->
+            for (entry in live) {
+                out.write(objectMapper.writeValueAsString(entry))
+                out.newLine()
+            }
+        }
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    private fun toKey(key: StoredKey): TerminologyCacheKey =
+        TerminologyCacheKey.of(key.operation, key.system, key.code, key.display, key.valueSetUrl, key.inferSystem)
+
+    private fun toCodeValidationResult(stored: StoredCodeValidation): IValidationSupport.CodeValidationResult {
+        val result = IValidationSupport.CodeValidationResult()
+            .setCode(stored.code)
+            .setDisplay(stored.display)
+            .setCodeSystemName(stored.codeSystemName)
+            .setCodeSystemVersion(stored.codeSystemVersion)
+            .setMessage(stored.message)
+        if (stored.severity != null) result.setSeverity(stored.severity)
+        stored.issues?.forEach {
+            result.addCodeValidationIssue(IValidationSupport.CodeValidationIssue(it.message, it.severity, it.code, it.coding))
+        }
+        return result
+    }
+
+    private fun fileFor(cache: String): Path = directory.resolve("$cache.ndjson")
+
+    override fun bindTo(registry: MeterRegistry) {
+        FunctionCounter.builder("terminology.store.written", written, AtomicLong::toDouble).register(registry)
+        FunctionCounter.builder("terminology.store.dropped", dropped, AtomicLong::toDouble).register(registry)
+        FunctionCounter.builder("terminology.store.loaded", loaded, AtomicLong::toDouble).register(registry)
+    }
+
+    override fun close() {
+        writer.shutdown()
+        writer.awaitTermination(10, TimeUnit.SECONDS)
+        flush()
+    }
+}
@@ -3,6 +3,8 @@ package uk.nhs.england.fhirvalidator.service
 import ca.uhn.fhir.context.FhirContext
 import ca.uhn.fhir.parser.IParser
 import ca.uhn.fhir.parser.LenientErrorHandler
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
 import uk.nhs.england.fhirvalidator.shared.PrePopulatedValidationSupport
 import org.hl7.fhir.instance.model.api.IBaseResource
 import org.hl7.fhir.r4.model.*
@@ -14,13 +16,75 @@ import java.io.InputStream
 
 @Service
 class ImplementationGuideParser(@Qualifier("R4") private val fhirContext: FhirContext) {
+    private val indexMapper = jacksonObjectMapper()
+
     fun createPrePopulatedValidationSupport(npmPackage: NpmPackage): PrePopulatedValidationSupport {
         val prePopulatedSupport =
             PrePopulatedValidationSupport(fhirContext)
-        getResourcesFromPackage(npmPackage).forEach(prePopulatedSupport::addResource)
+        for (folderName in listOf("package", "examples")) {
+            val index = getFolderIndex(npmPackage, folderName)
+            if (index == null) {
+                getResourcesFromFolder(npmPackage, folderName).forEach(prePopulatedSupport::addResource)
+            } else {
+                addResourcesFromIndex(npmPackage, folderName, index, prePopulatedSupport)
+            }
+        }
         return prePopulatedSupport
     }
 
+    /**
+     * Uses the folder's .index.json to skip files the validation support doesn't hold (e.g. example patients) without
+     * parsing them, CodeSystems and ValueSets are only parsed when first fetched.
+     */
+    private fun addResourcesFromIndex(npmPackage: NpmPackage, folderName: String, index: List<IndexEntry>, prePopulatedSupport: PrePopulatedValidationSupport) {
+        val jsonParser = fhirContext.newJsonParser().setParserErrorHandler(LenientErrorHandler())
+        var parsed = 0
+        var deferred = 0
+        for (entry in index) {
+            val filename = entry.filename ?: continue
+            val resourceType = entry.resourceType ?: continue
+            if (!PrePopulatedValidationSupport.RESOURCE_TYPES.contains(resourceType)) continue
+            if ((resourceType == "CodeSystem" || resourceType == "ValueSet") && !entry.url.isNullOrBlank()) {
+                prePopulatedSupport.addLazyResource(resourceType, entry.url, entry.version) {
+                    try {
+                        npmPackage.load(folderName, filename).use {
+                            fhirContext.newJsonParser().setParserErrorHandler(LenientErrorHandler()).parseResource(it)
+                        }
+                    } catch (ex: Exception) {
+                        ValidationConfiguration.logger.error("Unable to parse {} from {} - {}: {}", filename, npmPackage.name(), npmPackage.version(), ex.message)
+                        null
+                    }
+                }
+                deferred++
+            } else {
+                npmPackage.load(folderName, filename).use { prePopulatedSupport.addResource(parseResource(jsonParser, it)) }
+                parsed++
+            }
+        }
+        ValidationConfiguration.logger.info("Package {} - {} Folder {} parsed {} deferred {} skipped {}",
+            npmPackage.name(), npmPackage.version(), folderName, parsed, deferred, index.size - parsed - deferred)
+    }
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    data class IndexEntry(
+        val filename: String? = null,
+        val resourceType: String? = null,
+        val url: String? = null,
+        val version: String? = null
+    )
+
+    @JsonIgnoreProperties(ignoreUnknown = true)
+    data class FolderIndex(val files: List<IndexEntry> = emptyList())
+
+    private fun getFolderIndex(npmPackage: NpmPackage, folderName: String): List<IndexEntry>? {
+        return try {
+            npmPackage.load(folderName, ".index.json")?.use { indexMapper.readValue(it, FolderIndex::class.java).files }
+        } catch (ex: Exception) {
+            // No index (or an unreadable one), every file is parsed instead
+            null
+        }
+    }
+
     fun getResourcesFromPackage(npmPackage: NpmPackage): List<IBaseResource> {
         val list = getResourcesFromFolder(npmPackage, "package")
             .plus(getResourcesFromFolder(npmPackage, "examples"))
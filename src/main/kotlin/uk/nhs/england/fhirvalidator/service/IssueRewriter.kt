@@ -0,0 +1,89 @@
+package uk.nhs.england.fhirvalidator.service
+
+import io.micrometer.core.instrument.FunctionCounter
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.binder.MeterBinder
+import mu.KLogging
+import org.hl7.fhir.r4.model.OperationOutcome
+import org.springframework.stereotype.Service
+import uk.nhs.england.fhirvalidator.configuration.ValidationProperties
+import uk.nhs.england.fhirvalidator.util.MultiPatternMatcher
+import java.util.BitSet
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Applies validation.issueRules to the issues of a validation. The text of all the rules is compiled into one
+ * matcher at startup, so each issue's diagnostics are scanned once whatever the number of rules.
+ */
+@Service
+class IssueRewriter(validationProperties: ValidationProperties) : MeterBinder {
+    companion object : KLogging()
+
+    private class Rule(
+        val name: String,
+        val anyOf: IntArray,
+        val allOf: IntArray,
+        val noneOf: IntArray,
+        // null removes the issue
+        val severity: OperationOutcome.IssueSeverity?
+    ) {
+        val hits = AtomicLong()
+
+        fun matches(found: BitSet): Boolean =
+            (anyOf.isEmpty() || anyOf.any { found[it] })
+                && allOf.all { found[it] }
+                && noneOf.none { found[it] }
+    }
+
+    private val rules: List<Rule>
+    private val matcher: MultiPatternMatcher
+
+    init {
+        val patterns = LinkedHashMap<String, Int>()
+        fun indexes(text: List<String>) = text.map { patterns.getOrPut(it) { patterns.size } }.toIntArray()
+        rules = validationProperties.issueRules
+            .filter { it.anyOf.isNotEmpty() || it.allOf.isNotEmpty() }
+            .mapIndexed { index, rule ->
+                val severity = if (rule.action.equals("remove", ignoreCase = true)) null
+                    else OperationOutcome.IssueSeverity.fromCode(rule.action.lowercase())
+                Rule(rule.name.ifBlank { "rule-$index" }, indexes(rule.anyOf), indexes(rule.allOf), indexes(rule.noneOf), severity)
+            }
+        matcher = MultiPatternMatcher(patterns.keys.toList())
+        logger.info("{} issue rules, {} patterns", rules.size, patterns.size)
+    }
+
+    /**
+     * Rewriting again gives the same issues, [countHits] false leaves the metric alone for an outcome which will be
+     * rewritten again
+     */
+    fun rewrite(operationOutcome: OperationOutcome, countHits: Boolean = true) {
+        val newIssue = ArrayList<OperationOutcome.OperationOutcomeIssueComponent>(operationOutcome.issue.size)
+        for (issue in operationOutcome.issue) {
+            if (issue.hasLocation()) {
+                issue.location = issue.location.filter { it.value == null || !it.value.startsWith("Line") }
+            }
+            var keep = true
+            if (issue.hasDiagnostics()) {
+                val found = matcher.find(issue.diagnostics)
+                if (!found.isEmpty) {
+                    for (rule in rules) {
+                        if (!rule.matches(found)) continue
+                        if (countHits) rule.hits.incrementAndGet()
+                        if (rule.severity == null) keep = false else issue.severity = rule.severity
+                    }
+                }
+            }
+            if (keep) newIssue.add(issue)
+        }
+        operationOutcome.issue = newIssue
+    }
+
+    override fun bindTo(registry: MeterRegistry) {
+        rules.forEach { rule ->
+            FunctionCounter.builder("validation.issues.rewritten", rule.hits, AtomicLong::toDouble)
+                .tag("rule", rule.name)
+                .description("Validation issues changed or removed by the rule")
+                .register(registry)
+        }
+    }
+}
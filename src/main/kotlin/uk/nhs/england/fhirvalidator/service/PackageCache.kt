@@ -0,0 +1,278 @@
+package uk.nhs.england.fhirvalidator.service
+
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException
+import com.fasterxml.jackson.databind.ObjectMapper
+import mu.KLogging
+import org.hl7.fhir.utilities.json.model.JsonProperty
+import org.hl7.fhir.utilities.npm.NpmPackage
+import org.springframework.core.io.ClassPathResource
+import org.springframework.stereotype.Service
+import uk.nhs.england.fhirvalidator.configuration.FHIRServerProperties
+import uk.nhs.england.fhirvalidator.configuration.MessageProperties
+import uk.nhs.england.fhirvalidator.configuration.ValidationProperties
+import uk.nhs.england.fhirvalidator.model.SimplifierPackage
+import java.io.ByteArrayInputStream
+import java.io.FileNotFoundException
+import java.io.IOException
+import java.io.InputStream
+import java.net.HttpURLConnection
+import java.net.URL
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.Base64
+import java.util.HexFormat
+
+/**
+ * Fetches IG packages, keeping downloaded .tgz files in a local directory (validation.packageCache) so later starts,
+ * including ones without network access, don't download them again.
+ *
+ * Packages are stored by content, sha256/<hash>.tgz, with index/<name>#<version> holding the hash. Both are written
+ * to a temporary file and moved into place, and the hash is checked whenever a package is read back. Packages
+ * downloaded from the Simplifier registry are checked against the integrity (or shasum) it publishes for the version
+ * before they are cached, and not cached when they don't match. Packages from anywhere else (the AWS `$package`
+ * operation or a manifest downloadUrl) have nothing published to check against, so are cached as first downloaded.
+ * Nothing is checked when there is no cache directory.
+ */
+@Service
+open class PackageCache(
+    private val messageProperties: MessageProperties,
+    private val fhirServerProperties: FHIRServerProperties,
+    private val objectMapper: ObjectMapper,
+    validationProperties: ValidationProperties
+) {
+    companion object : KLogging() {
+        // npm package names (lower case in npm, FHIR package ids are not always) and semver versions, so a name or
+        // version can't step outside the cache directory or change the download url
+        private val PACKAGE_NAME = Regex("^(@[A-Za-z0-9-~][A-Za-z0-9-._~]*/)?[A-Za-z0-9-~][A-Za-z0-9-._~]*$")
+        private val PACKAGE_VERSION =
+            Regex("^(0|[1-9]\\d*)\\.(0|[1-9]\\d*)\\.(0|[1-9]\\d*)(-[0-9A-Za-z-]+(\\.[0-9A-Za-z-]+)*)?(\\+[0-9A-Za-z-]+(\\.[0-9A-Za-z-]+)*)?$")
+        private const val REGISTRY = "https://packages.simplifier.net/"
+    }
+
+    private class Download(val bytes: ByteArray, val fromRegistry: Boolean)
+
+    private val directory: Path? = validationProperties.packageCache?.let { Paths.get(it) }
+
+    /**
+     * The packages to load, from fhir.igs (name#version,...) or the bundled manifest.json
+     */
+    fun getManifest(): Array<SimplifierPackage> {
+        var manifest : Array<SimplifierPackage>? = null
+        if (fhirServerProperties.igs != null && !fhirServerProperties.igs!!.isEmpty()   ) {
+            manifest = parseManifest(fhirServerProperties.igs!!)
+        } else {
+            val configurationInputStream = ClassPathResource("manifest.json").inputStream
+            manifest = objectMapper.readValue(configurationInputStream, Array<SimplifierPackage>::class.java)
+        }
+        if (manifest == null) throw UnprocessableEntityException("Error processing IG manifest")
+        return manifest
+    }
+
+    /**
+     * @throws UnprocessableEntityException unless name is an npm package name and version a semver version
+     */
+    fun checkPackageId(name: String, version: String) {
+        if (!PACKAGE_NAME.matches(name) || !PACKAGE_VERSION.matches(version)) {
+            throw UnprocessableEntityException("Invalid package $name#$version")
+        }
+    }
+
+    fun parseManifest(packages: String): Array<SimplifierPackage> {
+        return packages.split(",")
+            .filter { it.isNotBlank() }
+            .map { SimplifierPackage(it.trim().substringBefore("#"), it.trim().substringAfter("#"), null) }
+            .toTypedArray()
+    }
+
+    /**
+     * The package from the cache directory, otherwise downloaded (and then cached)
+     */
+    fun getPackage(name: String, version: String, downloadPath: String?): NpmPackage {
+        checkPackageId(name, version)
+        val cached = read(name, version)
+        if (cached != null) {
+            logger.info("Using package cache for {} - {}", name, version)
+            return NpmPackage.fromPackage(ByteArrayInputStream(cached))
+        }
+        val download = downloadPackage(name, version, downloadPath)
+        if (directory != null && (!download.fromRegistry || verify(name, version, download.bytes))) {
+            write(name, version, download.bytes)
+        }
+        return NpmPackage.fromPackage(ByteArrayInputStream(download.bytes))
+    }
+
+    /**
+     * name#version of every package in the cache directory
+     */
+    fun getCachedPackages(): List<String> {
+        val index = directory?.resolve("index") ?: return emptyList()
+        if (!Files.isDirectory(index)) return emptyList()
+        return Files.list(index).use { files -> files.map { it.fileName.toString() }.filter { !it.endsWith(".tmp") }.sorted().toList() }
+    }
+
+    /**
+     * name and version of each dependency, hl7.fhir.r4.core is provided by HAPI so is skipped
+     */
+    fun getDependencies(npmPackage: NpmPackage): List<Pair<String, String>> {
+        val dependencies = ArrayList<Pair<String, String>>()
+        val dependency= npmPackage.npm.get("dependencies")
+
+        if (dependency !== null) {
+            if (dependency.isJsonArray) logger.info("isJsonArray")
+            if (dependency.isJsonObject) {
+                val obj = dependency.asJsonObject()
+                val entrySet: MutableList<JsonProperty>? = obj.properties
+                entrySet?.forEach()
+                {
+                    logger.info(it.name + " version =  " + it.value)
+                    if (it.name != "hl7.fhir.r4.core") {
+                        val entryVersion = it.value?.asString()?.replace("\"","")
+                        if (it.name != null && entryVersion != null) {
+                            dependencies.add(Pair(it.name!!, entryVersion))
+                        }
+                    }
+                }
+            }
+            if (dependency.isJsonNull) logger.info("isNull")
+            if (dependency.isJsonPrimitive) logger.info("isJsonPrimitive")
+        } else {
+            logger.info("No dependencies found for {} - {}",npmPackage.name(),npmPackage.version())
+        }
+        return dependencies
+    }
+
+    private fun read(name: String, version: String): ByteArray? {
+        val cacheDirectory = directory ?: return null
+        val indexFile = cacheDirectory.resolve("index").resolve("$name#$version")
+        if (!Files.exists(indexFile)) return null
+        try {
+            val hash = Files.readString(indexFile).trim()
+            val packageFile = cacheDirectory.resolve("sha256").resolve("$hash.tgz")
+            if (!Files.exists(packageFile)) return null
+            val bytes = Files.readAllBytes(packageFile)
+            if (sha256(bytes) != hash) {
+                logger.warn("Cached package {} - {} is corrupt, downloading it again", name, version)
+                Files.deleteIfExists(packageFile)
+                return null
+            }
+            return bytes
+        } catch (ex: IOException) {
+            logger.warn("Unable to read cached package {} - {}: {}", name, version, ex.message)
+            return null
+        }
+    }
+
+    private fun write(name: String, version: String, bytes: ByteArray) {
+        val cacheDirectory = directory ?: return
+        try {
+            val hash = sha256(bytes)
+            writeAtomically(cacheDirectory.resolve("sha256").resolve("$hash.tgz"), bytes)
+            writeAtomically(cacheDirectory.resolve("index").resolve("$name#$version"), hash.toByteArray())
+            logger.info("Cached package {} - {} ({})", name, version, hash)
+        } catch (ex: IOException) {
+            logger.warn("Unable to cache package {} - {}: {}", name, version, ex.message)
+        }
+    }
+
+    private fun writeAtomically(file: Path, bytes: ByteArray) {
+        Files.createDirectories(file.parent)
+        val temp = Files.createTempFile(file.parent, file.fileName.toString(), ".tmp")
+        Files.write(temp, bytes)
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+    }
+
+    /**
+     * Checks a package downloaded from the registry against the integrity (sha512) or shasum (sha1) it publishes for
+     * this version
+     * @return false when the package doesn't match, it is used but not cached. True when it matches or the registry
+     * entry can't be read, as for packages from other sources.
+     */
+    private fun verify(name: String, version: String, bytes: ByteArray): Boolean {
+        val dist = try {
+            readFromUrl(REGISTRY + name).use { objectMapper.readTree(it) }.path("versions").path(version).path("dist")
+        } catch (ex: Exception) {
+            logger.warn("Unable to read registry entry for {} - {}, caching it unchecked: {}", name, version, ex.message)
+            return true
+        }
+        val integrity = dist.path("integrity").asText("")
+        val shasum = dist.path("shasum").asText("")
+        val matches = when {
+            integrity.startsWith("sha512-") -> Base64.getEncoder()
+                .encodeToString(MessageDigest.getInstance("SHA-512").digest(bytes)) == integrity.substring(7)
+            shasum.isNotEmpty() -> HexFormat.of()
+                .formatHex(MessageDigest.getInstance("SHA-1").digest(bytes)).equals(shasum, ignoreCase = true)
+            else -> {
+                logger.warn("Registry publishes no integrity for {} - {}, caching it unchecked", name, version)
+                return true
+            }
+        }
+        if (!matches) logger.warn("Package {} - {} does not match the registry integrity, not caching it", name, version)
+        return matches
+    }
+
+    private fun sha256(bytes: ByteArray): String =
+        HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes))
+
+    private fun downloadPackage(name : String, version : String, downloadPath: String?) : Download {
+        logger.info("Downloading from AWS Cache {} - {}",name, version)
+        // Try self first
+        var inputStream : InputStream? = null;
+        var fromRegistry = false
+        try {
+            if (downloadPath == null ) {
+                val packUrl = "https://fhir.nhs.uk/ImplementationGuide/" + name + "-" + version
+                inputStream =
+                    readFromUrl(messageProperties.getNPMFhirServer() + "/FHIR/R4/ImplementationGuide/\$package?url=" + packUrl)
+                logger.info("Found Package on AWS Cache {} - {}", name, version)
+            } else {
+                inputStream =
+                    readFromUrl(downloadPath)
+                logger.info("Found Package at specified download path {} - {}", name, version)
+            }
+        } catch (ex : Exception) {
+            logger.warn("Package not found in IG Publisher or AWS Cache trying simplifier {} - {}",name,version)
+            if (ex.message!=null) logger.info(ex.message)
+            try {
+                inputStream = readFromUrl(REGISTRY + name + "/" + version)
+                fromRegistry = true
+                logger.info("Found Package on Simplifier {} - {}",name,version)
+            } catch (exSimplifier: Exception) {
+                logger.error("Package not found on simplifier {} - {}",name, version)
+            }
+        }
+        if (inputStream == null) {
+            logger.error("Failed to download  {} - {}",name, version)
+            throw UnprocessableEntityException("Failed to download package $name - $version")
+        }
+        return Download(inputStream.use { it.readAllBytes() }, fromRegistry)
+    }
+
+    open fun readFromUrl(url: String): InputStream {
+
+        val myUrl =  URL(url)
+
+        var retry = 2
+        while (retry > 0) {
+            val conn = myUrl.openConnection() as HttpURLConnection
+
+
+            conn.requestMethod = "GET"
+
+            try {
+                conn.connect()
+                return conn.inputStream
+            } catch (ex: FileNotFoundException) {
+                retry--
+                if (retry < 1) throw UnprocessableEntityException(ex.message)
+            } catch (ex: IOException) {
+                retry--
+                if (retry < 1) throw UnprocessableEntityException(ex.message)
+
+            }
+        }
+        throw UnprocessableEntityException("Number of retries exhausted")
+    }
+}
@@ -1,17 +1,21 @@
 package uk.nhs.england.fhirvalidator.service
 
-import ca.uhn.fhir.context.support.IValidationSupport
 import org.hl7.fhir.r4.model.Bundle
 import org.hl7.fhir.r4.model.Enumerations
 import org.hl7.fhir.r4.model.SearchParameter
-import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.stereotype.Service
 
 @Service
-class SearchParameterSupport(@Qualifier("SupportChain") private val supportChain: IValidationSupport,
-                             private val searchParameters : Bundle
+class SearchParameterSupport(private val conformanceIndex: ConformanceIndex,
+                             searchParameters : Bundle
 ) {
 
+    // The SearchParameters from the bundle take precedence over the conformance resources
+    private val bundleSearchParameters = searchParameters.entry
+        .mapNotNull { it.resource as? SearchParameter }
+        .filter { it.hasUrl() }
+        .associateBy { it.url }
+
     fun getSearchParameter(originalResourceType: String, originalName : String) : SearchParameter? {
         val parameters = originalName.split(".")
 
@@ -77,14 +81,7 @@ class SearchParameterSupport(@Qualifier("SupportChain") private val supportChain
 
     fun getSearchParameterByUrl(url : String) : SearchParameter? {
 
-        var searchParameter: SearchParameter? = null
-        for (resource in supportChain.fetchAllConformanceResources()!!) {
-            if (resource is SearchParameter) {
-                if (resource.url.equals(url)) {
-                    searchParameter = resource
-                }
-            }
-        }
+        var searchParameter: SearchParameter? = conformanceIndex.getByUrl(SearchParameter::class.java, url).lastOrNull()
 
         /*
         for (resource in implementationGuideParser!!.getResourcesOfType(
@@ -107,13 +104,8 @@ class SearchParameterSupport(@Qualifier("SupportChain") private val supportChain
 
          */
 
-        for (entry in searchParameters.entry) {
-            if (entry.resource is SearchParameter) {
-                if ((entry.resource as SearchParameter).url.equals(url)) {
-                    searchParameter = entry.resource as SearchParameter
-                }
-            }
-        }
+        val bundleSearchParameter = bundleSearchParameters[url]
+        if (bundleSearchParameter != null) searchParameter = bundleSearchParameter
 
         return searchParameter
     }
@@ -123,14 +115,7 @@ class SearchParameterSupport(@Qualifier("SupportChain") private val supportChain
         val codes=originalCode.split(":")
         val code= codes[0]
 
-        var searchParameter: SearchParameter? = null
-        for (resource in supportChain.fetchAllConformanceResources()!!) {
-            if (resource is SearchParameter) {
-                if (resource.code.equals(code)) {
-                    searchParameter = resource
-                }
-            }
-        }
+        var searchParameter: SearchParameter? = conformanceIndex.getByCode(SearchParameter::class.java, code).lastOrNull()
         when(code) {
             "_sort" -> {
                 searchParameter = SearchParameter().setCode(code).setType(Enumerations.SearchParamType.STRING).setDescription("Order to sort results in (can repeat for inner sort orders)").setExpression("")
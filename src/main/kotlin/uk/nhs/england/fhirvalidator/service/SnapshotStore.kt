@@ -0,0 +1,103 @@
+package uk.nhs.england.fhirvalidator.service
+
+import ca.uhn.fhir.context.FhirContext
+import ca.uhn.fhir.context.support.IValidationSupport
+import mu.KLogging
+import org.hl7.fhir.r4.model.Bundle
+import org.hl7.fhir.r4.model.StructureDefinition
+import org.hl7.fhir.utilities.npm.NpmPackage
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.stereotype.Service
+import uk.nhs.england.fhirvalidator.configuration.ValidationProperties
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.Paths
+import java.nio.file.StandardCopyOption
+import java.security.MessageDigest
+import java.util.HexFormat
+
+/**
+ * Generated StructureDefinition snapshots kept on disk, one file per package (name#version). A file is only used
+ * while the package content it was generated from is unchanged, so new or changed packages are regenerated.
+ */
+@Service
+class SnapshotStore(
+    @Qualifier("R4") private val fhirContext: FhirContext,
+    validationProperties: ValidationProperties
+) {
+    companion object : KLogging()
+
+    private val directory: Path? = validationProperties.snapshotCache?.let { Paths.get(it) }
+
+    val isEnabled: Boolean
+        get() = directory != null
+
+    /**
+     * SHA-256 of the package folder, package.json is included so dependency version changes count as a change
+     */
+    fun fingerprint(npmPackage: NpmPackage): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        for (file in npmPackage.list("package").sorted()) {
+            digest.update(file.toByteArray())
+            npmPackage.load("package", file).use { digest.update(it.readBytes()) }
+        }
+        return HexFormat.of().formatHex(digest.digest())
+    }
+
+    /**
+     * Copy the stored snapshots onto the package's profiles.
+     * @return false when there is nothing stored for this version of the package, so snapshots need generating
+     */
+    fun restore(npmPackage: NpmPackage, fingerprint: String, support: IValidationSupport): Boolean {
+        val file = fileFor(npmPackage) ?: return false
+        if (!Files.exists(file)) return false
+        try {
+            val stored = Files.newBufferedReader(file).use {
+                fhirContext.newJsonParser().parseResource(Bundle::class.java, it)
+            }
+            if (stored.identifier.value != fingerprint) {
+                logger.info("Package {} - {} has changed, regenerating snapshots", npmPackage.name(), npmPackage.version())
+                return false
+            }
+            var restored = 0
+            for (entry in stored.entry) {
+                val storedDefinition = entry.resource as? StructureDefinition ?: continue
+                val structureDefinition = support.fetchStructureDefinition(storedDefinition.url) as? StructureDefinition ?: continue
+                if (structureDefinition.hasSnapshot()) continue
+                // The differential is restored as well, it carries the circular reference corrections
+                structureDefinition.differential = storedDefinition.differential
+                structureDefinition.snapshot = storedDefinition.snapshot
+                restored++
+            }
+            logger.info("Restored {} snapshots for {} - {}", restored, npmPackage.name(), npmPackage.version())
+            return true
+        } catch (ex: Exception) {
+            logger.warn("Unable to read stored snapshots for {} - {}: {}", npmPackage.name(), npmPackage.version(), ex.message)
+            return false
+        }
+    }
+
+    fun save(npmPackage: NpmPackage, fingerprint: String, support: IValidationSupport) {
+        val file = fileFor(npmPackage) ?: return
+        val bundle = Bundle()
+        bundle.type = Bundle.BundleType.COLLECTION
+        bundle.identifier.value = fingerprint
+        support.fetchAllStructureDefinitions<StructureDefinition>()
+            ?.filterIsInstance<StructureDefinition>()
+            ?.filter { it.derivation == StructureDefinition.TypeDerivationRule.CONSTRAINT && it.hasSnapshot() }
+            ?.distinctBy { it.url }
+            ?.forEach { bundle.addEntry().setFullUrl(it.url).resource = it }
+        try {
+            Files.createDirectories(file.parent)
+            val temp = Files.createTempFile(file.parent, file.fileName.toString(), ".tmp")
+            Files.newBufferedWriter(temp).use { fhirContext.newJsonParser().encodeResourceToWriter(bundle, it) }
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE)
+            logger.info("Stored {} snapshots for {} - {}", bundle.entry.size, npmPackage.name(), npmPackage.version())
+        } catch (ex: Exception) {
+            logger.warn("Unable to store snapshots for {} - {}: {}", npmPackage.name(), npmPackage.version(), ex.message)
+        }
+    }
+
+    private fun fileFor(npmPackage: NpmPackage): Path? =
+        directory?.resolve(npmPackage.name() + "#" + npmPackage.version() + ".snapshots.json")
+}
@@ -0,0 +1,140 @@
+package uk.nhs.england.fhirvalidator.service
+
+import ca.uhn.fhir.context.FhirContext
+import ca.uhn.fhir.parser.DataFormatException
+import com.fasterxml.jackson.core.JsonGenerator
+import com.fasterxml.jackson.core.JsonProcessingException
+import com.fasterxml.jackson.core.JsonToken
+import com.fasterxml.jackson.databind.JsonNode
+import com.fasterxml.jackson.databind.ObjectMapper
+import mu.KLogging
+import org.hl7.fhir.instance.model.api.IBaseResource
+import org.hl7.fhir.r4.model.OperationOutcome
+import org.hl7.fhir.r4.model.StringType
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.stereotype.Service
+import uk.nhs.england.fhirvalidator.util.createOperationOutcome
+import uk.nhs.england.fhirvalidator.util.createOperationOutcomeIssue
+import java.io.InputStream
+import java.io.OutputStream
+import java.time.Duration
+import java.time.Instant
+
+/**
+ * Validates a JSON Bundle one entry at a time, reading the request with the Jackson streaming parser and writing
+ * each entry's issues to the response as soon as they are known. Only one entry is held in memory at a time, so
+ * checks which need the whole Bundle (references between entries, message and document definitions) are not made.
+ */
+@Service
+class StreamingBundleValidator(
+    @Qualifier("R4") private val fhirContext: FhirContext,
+    private val objectMapper: ObjectMapper
+) {
+    companion object : KLogging()
+
+    /**
+     * @param validateEntry validates a single entry resource, returning its issues
+     */
+    fun validate(input: InputStream, output: OutputStream, validateEntry: (IBaseResource) -> OperationOutcome?) {
+        val start = Instant.now()
+        var entries = 0
+        var issues = 0
+        objectMapper.factory.createGenerator(output).use { generator ->
+            generator.writeStartObject()
+            generator.writeStringField("resourceType", "OperationOutcome")
+            generator.writeArrayFieldStart("issue")
+            try {
+                objectMapper.factory.createParser(input).use { parser ->
+                    if (parser.nextToken() != JsonToken.START_OBJECT) throw DataFormatException("Expected a JSON Bundle")
+                    var resourceType: String? = null
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        val field = parser.currentName()
+                        parser.nextToken()
+                        when (field) {
+                            "resourceType" -> {
+                                resourceType = parser.text
+                                // Usually the first field, so nothing is validated when it is not a Bundle
+                                if (resourceType != "Bundle") throw DataFormatException("Streaming validation expects a Bundle, found $resourceType")
+                            }
+                            "entry" -> {
+                                if (parser.currentToken() != JsonToken.START_ARRAY) throw DataFormatException("Bundle.entry must be an array")
+                                while (true) {
+                                    val token = parser.nextToken()
+                                    if (token == JsonToken.END_ARRAY) break
+                                    if (token == null) throw DataFormatException("Bundle.entry is not terminated")
+                                    if (token != JsonToken.START_OBJECT) {
+                                        // e.g. a null entry, reported and skipped rather than ending the entries
+                                        parser.skipChildren()
+                                        issues += writeIssues(createOperationOutcome("Bundle.entry must be an object", "Bundle.entry[$entries]"), generator)
+                                    } else {
+                                        val entry = objectMapper.readTree<JsonNode>(parser)
+                                        val resource = entry.get("resource")
+                                        if (resource != null) issues += validateEntryResource(entries, resource, generator, validateEntry)
+                                    }
+                                    entries++
+                                }
+                            }
+                            else -> parser.skipChildren()
+                        }
+                    }
+                    if (resourceType == null) throw DataFormatException("Streaming validation expects a Bundle, found no resourceType")
+                }
+            } catch (ex: JsonProcessingException) {
+                issues += writeIssues(createOperationOutcome(ex.originalMessage ?: "Invalid JSON", null), generator)
+            } catch (ex: DataFormatException) {
+                issues += writeIssues(createOperationOutcome(ex.message ?: "Invalid JSON", null), generator)
+            }
+            if (issues == 0) {
+                issues += writeIssues(createOperationOutcome(listOf(OperationOutcome.OperationOutcomeIssueComponent()
+                    .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+                    .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                    .setDiagnostics("No issues detected during validation"))), generator)
+            }
+            generator.writeEndArray()
+            generator.writeEndObject()
+        }
+        logger.info("Streamed validation of {} entries, {} issues in {} ms", entries, issues,
+            Duration.between(start, Instant.now()).toMillis())
+    }
+
+    private fun validateEntryResource(
+        index: Int,
+        resourceNode: JsonNode,
+        generator: JsonGenerator,
+        validateEntry: (IBaseResource) -> OperationOutcome?
+    ): Int {
+        val entryPath = "Bundle.entry[$index].resource"
+        val outcome = try {
+            val resource = fhirContext.newJsonParser().parseResource(objectMapper.writeValueAsString(resourceNode))
+            val result = validateEntry(resource) ?: return 0
+            // Issues refer to the entry resource, so are moved under the entry
+            val resourceType = resource.fhirType()
+            result.issue.forEach { issue ->
+                issue.expression = issue.expression.map { StringType(relocate(it.value, resourceType, entryPath)) }
+                issue.location = issue.location.map { StringType(relocate(it.value, resourceType, entryPath)) }
+            }
+            result
+        } catch (ex: DataFormatException) {
+            createOperationOutcome(listOf(createOperationOutcomeIssue(ex.message ?: "Invalid resource", entryPath)))
+        } catch (ex: Exception) {
+            // A failure validating one entry is reported against it, the remaining entries are still validated
+            logger.warn("Failed to validate Bundle.entry[{}]: {}", index, ex.message)
+            createOperationOutcome(listOf(createOperationOutcomeIssue(ex.message ?: ex.javaClass.simpleName, "Bundle.entry[$index]")))
+        }
+        return writeIssues(outcome, generator)
+    }
+
+    private fun relocate(path: String?, resourceType: String, entryPath: String): String? {
+        if (path == null || !path.startsWith(resourceType)) return path
+        return entryPath + path.substring(resourceType.length)
+    }
+
+    private fun writeIssues(outcome: OperationOutcome, generator: JsonGenerator): Int {
+        if (!outcome.hasIssue()) return 0
+        val encoded = objectMapper.readTree(fhirContext.newJsonParser().encodeResourceToString(outcome))
+        encoded.get("issue")?.forEach { generator.writeTree(it) }
+        // Send what has been validated so far rather than buffering the whole response
+        generator.flush()
+        return outcome.issue.size
+    }
+}
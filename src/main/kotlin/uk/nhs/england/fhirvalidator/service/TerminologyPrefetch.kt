@@ -0,0 +1,64 @@
+package uk.nhs.england.fhirvalidator.service
+
+import ca.uhn.fhir.context.FhirContext
+import mu.KLogging
+import org.hl7.fhir.instance.model.api.IBaseResource
+import org.hl7.fhir.r4.model.Coding
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.stereotype.Service
+import uk.nhs.england.fhirvalidator.configuration.TerminologyValidationProperties
+import uk.nhs.england.fhirvalidator.configuration.ValidationConfiguration
+import uk.nhs.england.fhirvalidator.shared.NHSDCachingValidationSupport
+import uk.nhs.england.fhirvalidator.shared.RemoteTerminologyServiceValidationSupport
+import uk.nhs.england.fhirvalidator.shared.TerminologyCacheKey
+import java.util.*
+
+/*
+ Collects the remote terminology codings in a resource and validates them in a few batch requests, priming the
+ remote terminology cache so the instance validator doesn't make one round trip per coding.
+ */
+@Service
+class TerminologyPrefetch(
+    @Qualifier("R4") private val fhirContext: FhirContext,
+    private val terminologyValidationProperties: TerminologyValidationProperties,
+    private val optionalRemoteTerminologySupport: Optional<RemoteTerminologyServiceValidationSupport>,
+    private val optionalRemoteCachingSupport: Optional<NHSDCachingValidationSupport>
+) {
+    companion object : KLogging()
+
+    fun prefetch(resource: IBaseResource) {
+        if (!terminologyValidationProperties.prefetch.enabled) return
+        val codings = uncachedCodings(resource)
+        if (codings.isEmpty()) return
+        val remoteSupport = optionalRemoteTerminologySupport.get()
+        val cachingSupport = optionalRemoteCachingSupport.get()
+
+        codings.chunked(terminologyValidationProperties.prefetch.batchSize.coerceAtLeast(1)).forEach { batch ->
+            try {
+                remoteSupport.validateCodesInBatch(batch).forEach { (key, result) ->
+                    cachingSupport.primeValidateCode(key, result)
+                }
+            } catch (ex: Exception) {
+                // Not fatal, the validator will validate these codes one at a time
+                logger.warn("Batch \$validate-code of {} codings failed - {}", batch.size, ex.message)
+            }
+        }
+    }
+
+    private fun uncachedCodings(resource: IBaseResource): Set<TerminologyCacheKey> {
+        if (!optionalRemoteTerminologySupport.isPresent || !optionalRemoteCachingSupport.isPresent) return emptySet()
+        val remoteSupport = optionalRemoteTerminologySupport.get()
+        val cachingSupport = optionalRemoteCachingSupport.get()
+
+        val codings = LinkedHashSet<TerminologyCacheKey>()
+        fhirContext.newTerser().getAllPopulatedChildElementsOfType(resource, Coding::class.java).forEach {
+            if (it.hasSystem() && it.hasCode()
+                && ValidationConfiguration.remoteCodeSystems.test(it.system)
+                && remoteSupport.isValidatedRemotely(it.system)) {
+                val key = TerminologyCacheKey.forValidateCode(it.system, it.code, it.display, null)
+                if (!cachingSupport.isValidateCodeCached(key)) codings.add(key)
+            }
+        }
+        return codings
+    }
+}
@@ -0,0 +1,105 @@
+package uk.nhs.england.fhirvalidator.service
+
+import ca.uhn.fhir.context.FhirContext
+import com.github.benmanes.caffeine.cache.Cache
+import com.github.benmanes.caffeine.cache.Caffeine
+import io.micrometer.core.instrument.FunctionCounter
+import io.micrometer.core.instrument.Gauge
+import io.micrometer.core.instrument.MeterRegistry
+import io.micrometer.core.instrument.binder.MeterBinder
+import mu.KLogging
+import org.hl7.fhir.instance.model.api.IBaseResource
+import org.hl7.fhir.r4.model.OperationOutcome
+import org.springframework.beans.factory.annotation.Qualifier
+import org.springframework.stereotype.Service
+import uk.nhs.england.fhirvalidator.configuration.ValidationProperties
+import uk.nhs.england.fhirvalidator.model.FHIRPackage
+import java.nio.charset.StandardCharsets
+import java.security.MessageDigest
+import java.util.HexFormat
+
+/**
+ * Results of $validate kept by a hash of the resource, so identical resources sent again (retries, resubmissions)
+ * are not validated again. The resource is re-encoded as compact JSON before hashing, so differences in whitespace,
+ * property order or JSON/XML format give the same key. The key also covers the validation parameters and the
+ * loaded packages, a different package set never shares results.
+ *
+ * The packages are only identified by name#version, not their content, which is enough as the cache is held in
+ * memory and packages are loaded once at startup: the cache never outlives the package set it was filled with.
+ * Keeping results across restarts, or reloading packages while running, would need the fingerprint to cover the
+ * package contents.
+ *
+ * Working out the key encodes the whole resource again on every request, including misses, which adds to the cost
+ * of a validation that isn't cached.
+ */
+@Service
+class ValidationResultCache(
+    @Qualifier("R4") private val fhirContext: FhirContext,
+    validationProperties: ValidationProperties,
+    private val fhirPackages: List<FHIRPackage>
+) : MeterBinder {
+    companion object : KLogging()
+
+    private val resultCache = validationProperties.resultCache
+
+    private val cache: Cache<String, OperationOutcome>? = if (resultCache.enabled) {
+        Caffeine.newBuilder()
+            .maximumSize(resultCache.maximumSize)
+            .expireAfterWrite(resultCache.expireAfterWrite)
+            .recordStats()
+            .build()
+    } else null
+
+    // The package list is fixed once the application has started, so this is worked out once
+    private val packageFingerprint: String by lazy {
+        val digest = MessageDigest.getInstance("SHA-256")
+        fhirPackages.map { it.packageName + "#" + it.version }.sorted().forEach {
+            digest.update(it.toByteArray(StandardCharsets.UTF_8))
+            digest.update(0)
+        }
+        HexFormat.of().formatHex(digest.digest())
+    }
+
+    /**
+     * @param validation run when the result isn't cached, its result is cached
+     * @return a copy of the result, so callers may change it
+     */
+    fun get(
+        resource: IBaseResource,
+        profile: String?,
+        importProfile: Boolean,
+        maxErrors: Int?,
+        validation: () -> OperationOutcome
+    ): OperationOutcome {
+        val cache = this.cache ?: return validation()
+        // Hashed before validating, validation adds profiles to the resource
+        val key = key(resource, profile, importProfile, maxErrors)
+        cache.getIfPresent(key)?.let { return it.copy() }
+        // Not computed inside the cache, a validation can take long enough to hold up other entries
+        val result = validation()
+        cache.put(key, result.copy())
+        return result
+    }
+
+    private fun key(resource: IBaseResource, profile: String?, importProfile: Boolean, maxErrors: Int?): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        digest.update("$packageFingerprint|$profile|$importProfile|$maxErrors|".toByteArray(StandardCharsets.UTF_8))
+        digest.update(fhirContext.newJsonParser().setPrettyPrint(false).encodeResourceToString(resource)
+            .toByteArray(StandardCharsets.UTF_8))
+        return HexFormat.of().formatHex(digest.digest())
+    }
+
+    override fun bindTo(registry: MeterRegistry) {
+        val cache = this.cache ?: return
+        FunctionCounter.builder("validation.result.cache.requests", cache) { it.stats().hitCount().toDouble() }
+            .tag("result", "hit")
+            .register(registry)
+        FunctionCounter.builder("validation.result.cache.requests", cache) { it.stats().missCount().toDouble() }
+            .tag("result", "miss")
+            .register(registry)
+        FunctionCounter.builder("validation.result.cache.evictions", cache) { it.stats().evictionCount().toDouble() }
+            .register(registry)
+        Gauge.builder("validation.result.cache.size", cache) { it.estimatedSize().toDouble() }
+            .register(registry)
+    }
+}
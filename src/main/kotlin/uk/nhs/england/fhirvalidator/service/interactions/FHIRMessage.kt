@@ -3,19 +3,26 @@ package uk.nhs.england.fhirvalidator.service.interactions
 import uk.nhs.england.fhirvalidator.util.applyProfile
 import uk.nhs.england.fhirvalidator.util.createOperationOutcome
 import uk.nhs.england.fhirvalidator.util.createOperationOutcomeIssue
-import uk.nhs.england.fhirvalidator.util.getResourcesOfType
-import org.hl7.fhir.common.hapi.validation.support.ValidationSupportChain
 import org.hl7.fhir.instance.model.api.IBaseResource
 import org.hl7.fhir.r4.model.*
 import org.springframework.stereotype.Service
+import uk.nhs.england.fhirvalidator.service.ConformanceIndex
 import uk.nhs.england.fhirvalidator.service.ImplementationGuideParser
 
 @Service
 class FHIRMessage(
     implementationGuideParser: ImplementationGuideParser,
-    supportChain: ValidationSupportChain
+    conformanceIndex: ConformanceIndex
 ) {
-    val messageDefinitions = supportChain.fetchAllConformanceResources()?.filterIsInstance(MessageDefinition::class.java)
+    val messageDefinitions = conformanceIndex.getResources(MessageDefinition::class.java)
+
+    // Keyed by eventCoding system|code and system|code|url, the last definition loaded wins
+    private val messageDefinitionsByEvent = messageDefinitions
+        .filter { it.hasEventCoding() }
+        .associateBy { eventKey(it.eventCoding.system, it.eventCoding.code) }
+    private val messageDefinitionsByEventAndUrl = messageDefinitions
+        .filter { it.hasEventCoding() && it.hasUrl() }
+        .associateBy { eventKey(it.eventCoding.system, it.eventCoding.code) + "|" + it.url }
     /*
     val messageDefinitions = npmPackages.flatMap {
         implementationGuideParser.getResourcesOfTypeFromPackage(it, MessageDefinition::class.java)
@@ -53,21 +60,23 @@ class FHIRMessage(
     private fun findMessageDefinition(messageType: Coding, messageDefinitionProfile: String?): MessageDefinition? {
 
         if (messageDefinitionProfile != null) {
-            return messageDefinitions
-                ?.filter { it.eventCoding.system == messageType.system }
-                ?.lastOrNull { it.eventCoding.code == messageType.code &&  it.url == messageDefinitionProfile }
+            return messageDefinitionsByEventAndUrl[eventKey(messageType.system, messageType.code) + "|" + messageDefinitionProfile]
         } else {
-            return messageDefinitions
-                ?.filter { it.eventCoding.system == messageType.system }
-                ?.lastOrNull { it.eventCoding.code == messageType.code }
+            return messageDefinitionsByEvent[eventKey(messageType.system, messageType.code)]
         }
     }
 
+    private fun eventKey(system: String?, code: String?) = "$system|$code"
+
     private fun applyMessageDefinition(
         resource: Bundle,
         messageDefinition: MessageDefinition
     ): OperationOutcome? {
-        val issues = messageDefinition.focus.mapNotNull { applyMessageDefinitionFocus(resource, it) }
+        // One pass over the entries, each focus then takes its resources by type
+        val resourcesByType = resource.entry
+            .mapNotNull { it.resource }
+            .groupBy { it.fhirType() }
+        val issues = messageDefinition.focus.mapNotNull { applyMessageDefinitionFocus(resourcesByType, it) }
         if (issues.isEmpty()) {
             return null
         }
@@ -75,10 +84,10 @@ class FHIRMessage(
     }
 
     private fun applyMessageDefinitionFocus(
-        bundle: Bundle,
+        resourcesByType: Map<String, List<IBaseResource>>,
         focus: MessageDefinition.MessageDefinitionFocusComponent
     ): OperationOutcome.OperationOutcomeIssueComponent? {
-        val matchingResources = getResourcesOfType(bundle, focus.code)
+        val matchingResources = resourcesByType[focus.code] ?: emptyList()
         applyMessageDefinitionFocusProfile(focus, matchingResources)
         return applyMessageDefinitionFocusMinMax(focus, matchingResources.size)
     }
@@ -34,6 +34,7 @@ import uk.nhs.england.fhirvalidator.interceptor.CapabilityStatementApplier
 import uk.nhs.england.fhirvalidator.model.FHIRPackage
 import uk.nhs.england.fhirvalidator.model.SimplifierPackage
 import uk.nhs.england.fhirvalidator.service.ImplementationGuideParser
+import uk.nhs.england.fhirvalidator.service.ConformanceIndex
 import uk.nhs.england.fhirvalidator.service.SearchParameterSupport
 import java.math.BigDecimal
 import java.net.URI
@@ -47,6 +48,7 @@ class CapabilityStatementToOpenAPIConversion(@Qualifier("R4") private val ctx: F
                                              private val fhirPackage:  List<FHIRPackage>,
                                              @Qualifier("SupportChain") private val supportChain: IValidationSupport,
                                              private val searchParameterSupport : SearchParameterSupport,
+                                             private val conformanceIndex: ConformanceIndex,
                 private val capabilityStatementApplier: CapabilityStatementApplier
 ) {
 
@@ -649,11 +651,8 @@ class CapabilityStatementToOpenAPIConversion(@Qualifier("R4") private val ctx: F
         val operationDefinition = AtomicReference<OperationDefinition?>()
         //val definitionId = IdType(theOperation.definition)
 
-            for (resource in supportChain.fetchAllConformanceResources()!!) {
-                if (resource is OperationDefinition && resource.url == theOperation.definition) {
-                    operationDefinition.set(resource)
-                    break
-                }
+            if (theOperation.hasDefinition()) {
+                operationDefinition.set(conformanceIndex.getByUrl(OperationDefinition::class.java, theOperation.definition).firstOrNull())
             }
 
         if (operationDefinition.get() == null) {
@@ -1261,41 +1260,37 @@ class CapabilityStatementToOpenAPIConversion(@Qualifier("R4") private val ctx: F
         if (supportedMessage.hasDefinition()) {
             supportedDocumentation += " \n\n MessageDefinition.url = **"+ supportedMessage.definition+"** \n"
 
-            for (resourceChain in supportChain.fetchAllConformanceResources()!!)
-                if (resourceChain is MessageDefinition) {
-                    if (resourceChain.url == supportedMessage.definition) {
-                        if (resourceChain.hasDescription()) {
-                            example.summary = unescapeMarkdown(resourceChain.description)
-                        }
-                        if (resourceChain.hasPurpose()) {
-                            supportedDocumentation += "\n ### Purpose" + resourceChain.purpose
-                        }
-                        if (resourceChain.hasEventCoding()) {
-                            supportedDocumentation += " \n\n The first Bundle.entry **MUST** be a FHIR MessageHeader with \n MessageHeader.eventCoding = **" + resourceChain.eventCoding.code + "** \n"
-                        }
-                        if (resourceChain.hasFocus()) {
-                            supportedDocumentation += "\n\n | Resource | Profile | Min | Max | \n"
-                            supportedDocumentation += "|----------|---------|-----|-----| \n"
-                            for (foci in resourceChain.focus) {
-                                val min = foci.min
-                                val max = foci.max
-                                val resource = foci.code
-                                var profile = foci.profile
-                                if (profile == null) {
-                                    profile = ""
-                                } else {
-                                    profile = getDocumentationPath(profile)
-                                    addFhirResourceSchema(openApi, foci.code, foci.profile, enhance)
-                                    addResoureTag(openApi, foci.code,foci.profile, enhance, "")
-                                }
-                                val idStr = getProfileName(foci.profile)
-                                supportedDocumentation += "| [$resource](https://www.hl7.org/fhir/R4/$resource.html) | [$idStr]($profile) | $min | $max | \n"
-                            }
+            val resourceChain = conformanceIndex.getByUrl(MessageDefinition::class.java, supportedMessage.definition).firstOrNull()
+            if (resourceChain != null) {
+                if (resourceChain.hasDescription()) {
+                    example.summary = unescapeMarkdown(resourceChain.description)
+                }
+                if (resourceChain.hasPurpose()) {
+                    supportedDocumentation += "\n ### Purpose" + resourceChain.purpose
+                }
+                if (resourceChain.hasEventCoding()) {
+                    supportedDocumentation += " \n\n The first Bundle.entry **MUST** be a FHIR MessageHeader with \n MessageHeader.eventCoding = **" + resourceChain.eventCoding.code + "** \n"
+                }
+                if (resourceChain.hasFocus()) {
+                    supportedDocumentation += "\n\n | Resource | Profile | Min | Max | \n"
+                    supportedDocumentation += "|----------|---------|-----|-----| \n"
+                    for (foci in resourceChain.focus) {
+                        val min = foci.min
+                        val max = foci.max
+                        val resource = foci.code
+                        var profile = foci.profile
+                        if (profile == null) {
+                            profile = ""
+                        } else {
+                            profile = getDocumentationPath(profile)
+                            addFhirResourceSchema(openApi, foci.code, foci.profile, enhance)
+                            addResoureTag(openApi, foci.code,foci.profile, enhance, "")
                         }
-                        // only process this loop once
-                        break
+                        val idStr = getProfileName(foci.profile)
+                        supportedDocumentation += "| [$resource](https://www.hl7.org/fhir/R4/$resource.html) | [$idStr]($profile) | $min | $max | \n"
                     }
                 }
+            }
 
 
 
@@ -24,6 +24,7 @@ import org.springframework.beans.factory.annotation.Qualifier
 import org.springframework.stereotype.Service
 import uk.nhs.england.fhirvalidator.service.interactions.FHIRMessage
 import uk.nhs.england.fhirvalidator.interceptor.CapabilityStatementApplier
+import uk.nhs.england.fhirvalidator.service.ConformanceIndex
 import uk.nhs.england.fhirvalidator.service.SearchParameterSupport
 import java.util.*
 
@@ -31,6 +32,7 @@ import java.util.*
 class OpenAPItoCapabilityStatementConversion(@Qualifier("R4") private val ctx: FhirContext?,
                                              @Qualifier("SupportChain") private val supportChain: IValidationSupport,
                                              private val searchParameterSupport : SearchParameterSupport,
+                                             private val conformanceIndex: ConformanceIndex,
                                              private val fhirValidator: FhirValidator,
                                              private val FHIRMessage: FHIRMessage,
                                              private val capabilityStatementApplier: CapabilityStatementApplier
@@ -482,14 +484,7 @@ class OpenAPItoCapabilityStatementConversion(@Qualifier("R4") private val ctx: F
 
     fun getOperationDefinition(operationCode : String) : OperationDefinition? {
         val operation= operationCode.removePrefix("$")
-        for (resource in supportChain.fetchAllConformanceResources()!!) {
-            if (resource is OperationDefinition) {
-                if (resource.code.equals(operation)) {
-                    return resource
-                }
-            }
-        }
-        return null
+        return conformanceIndex.getByCode(OperationDefinition::class.java, operation).firstOrNull()
     }
 
     fun getSearchParameter(outcomes : MutableList<OperationOutcome.OperationOutcomeIssueComponent> , path : String, originalResourceType: String, originalName : String) : SearchParameter? {
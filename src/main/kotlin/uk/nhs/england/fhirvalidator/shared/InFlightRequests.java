@@ -0,0 +1,77 @@
+package uk.nhs.england.fhirvalidator.shared;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Single flight for slow calls (e.g. remote terminology requests). Concurrent callers asking for the same key while
+ * a call is in progress wait for and share its result instead of making their own call.
+ * <p>
+ * Nothing is retained once a call completes, caching the result is left to the caller.
+ * </p>
+ * <p>
+ * Only use it for leaf calls (a single remote request). A loader which itself goes through an InFlightRequests for
+ * another key can deadlock with a thread doing the same in the opposite order, as each waits for the other's call.
+ * </p>
+ */
+public class InFlightRequests<K, V> {
+
+    private final ConcurrentHashMap<K, Call<V>> myCalls = new ConcurrentHashMap<>();
+    private final AtomicLong myCallsSaved = new AtomicLong();
+
+    public V execute(K theKey, Supplier<V> theLoader) {
+        Call<V> call = new Call<>(Thread.currentThread());
+        Call<V> existing = myCalls.putIfAbsent(theKey, call);
+        if (existing != null) {
+            if (existing.myOwner == Thread.currentThread()) {
+                // Re-entrant request for the same key, waiting on ourselves would never return
+                return theLoader.get();
+            }
+            myCallsSaved.incrementAndGet();
+            return existing.await();
+        }
+        try {
+            V value = theLoader.get();
+            call.myFuture.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            call.myFuture.completeExceptionally(e);
+            throw e;
+        } finally {
+            myCalls.remove(theKey, call);
+        }
+    }
+
+    /**
+     * @return number of calls which were answered by another caller's in flight call
+     */
+    public long getCallsSaved() {
+        return myCallsSaved.get();
+    }
+
+    public int getInFlight() {
+        return myCalls.size();
+    }
+
+    private static class Call<V> {
+        private final Thread myOwner;
+        private final CompletableFuture<V> myFuture = new CompletableFuture<>();
+
+        private Call(Thread theOwner) {
+            myOwner = theOwner;
+        }
+
+        private V await() {
+            try {
+                return myFuture.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                if (e.getCause() instanceof Error) throw (Error) e.getCause();
+                throw e;
+            }
+        }
+    }
+}
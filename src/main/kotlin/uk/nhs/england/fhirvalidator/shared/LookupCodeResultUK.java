@@ -1,7 +1,10 @@
 package uk.nhs.england.fhirvalidator.shared;
 
 import ca.uhn.fhir.context.support.IValidationSupport;
+import org.hl7.fhir.r4.model.CodeType;
 import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.StringType;
+import org.hl7.fhir.r4.model.UriType;
 
 public class LookupCodeResultUK extends IValidationSupport.LookupCodeResult {
     private Parameters originalParameters;
@@ -13,4 +16,35 @@ public class LookupCodeResultUK extends IValidationSupport.LookupCodeResult {
     public void setOriginalParameters(Parameters originalParameters) {
         this.originalParameters = originalParameters;
     }
+
+    /**
+     * Build the result from a $lookup response, also used to restore persisted lookups
+     */
+    public static LookupCodeResultUK fromParameters(Parameters parameters) {
+        LookupCodeResultUK lookupCodeResult = new LookupCodeResultUK();
+        lookupCodeResult.setOriginalParameters(parameters);
+        for (Parameters.ParametersParameterComponent parametersParameterComponent : parameters.getParameter()) {
+            if (parametersParameterComponent.getName().equals("code")) {
+                lookupCodeResult.setFound(true);
+            } else
+            if (parametersParameterComponent.getName().equals("display")) {
+                lookupCodeResult.setCodeDisplay(((StringType) parametersParameterComponent.getValue()).getValue());
+            } else if (parametersParameterComponent.getName().equals("name")) {
+                lookupCodeResult.setCodeSystemDisplayName(((StringType) parametersParameterComponent.getValue()).getValue());
+            } else if (parametersParameterComponent.getName().equals("version")) {
+                lookupCodeResult.setCodeSystemVersion(((StringType) parametersParameterComponent.getValue()).getValue());
+            } else if (parametersParameterComponent.getName().equals("code")) {
+                lookupCodeResult.setSearchedForCode(((StringType) parametersParameterComponent.getValue()).getValue());
+            } else if (parametersParameterComponent.getName().equals("system")) {
+                lookupCodeResult.setSearchedForSystem(((UriType) parametersParameterComponent.getValue()).getValue());
+            }
+            else if (parametersParameterComponent.getValue() instanceof StringType) {
+                lookupCodeResult.getProperties().add(new IValidationSupport.StringConceptProperty(parametersParameterComponent.getName(), ((StringType) parametersParameterComponent.getValue()).getValue()));
+            } else if (parametersParameterComponent.getValue() instanceof CodeType) {
+                CodeType codeType = (CodeType) parametersParameterComponent.getValue();
+                lookupCodeResult.getProperties().add(new IValidationSupport.CodingConceptProperty(parametersParameterComponent.getName(),codeType.getSystem(),codeType.getCode(),codeType.getDisplay()));
+            }
+        }
+        return lookupCodeResult;
+    }
 }
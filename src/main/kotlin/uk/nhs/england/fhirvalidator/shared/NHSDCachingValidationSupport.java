@@ -8,11 +8,23 @@ import ca.uhn.fhir.context.support.ValidationSupportContext;
 import ca.uhn.fhir.context.support.ValueSetExpansionOptions;
 import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Weigher;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HexFormat;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -26,37 +38,155 @@ import org.hl7.fhir.common.hapi.validation.support.BaseValidationSupportWrapper;
 import org.hl7.fhir.common.hapi.validation.support.CachingValidationSupport;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.ValueSet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class NHSDCachingValidationSupport extends BaseValidationSupportWrapper implements IValidationSupport {
+public class NHSDCachingValidationSupport extends BaseValidationSupportWrapper implements IValidationSupport, MeterBinder {
     private static final Logger ourLog = LoggerFactory.getLogger(CachingValidationSupport.class);
     public static final ValueSetExpansionOptions EMPTY_EXPANSION_OPTIONS = new ValueSetExpansionOptions();
     private final Cache<String, Object> myCache;
-    private final Cache<String, Object> myValidateCodeCache;
+    private final Cache<TerminologyCacheKey, Object> myValidateCodeCache;
     private final Cache<TranslateCodeRequest, Object> myTranslateCodeCache;
-    private final Cache<String, Object> myLookupCodeCache;
+    private final Cache<TerminologyCacheKey, Object> myLookupCodeCache;
     private final ThreadPoolExecutor myBackgroundExecutor;
     private final Map myNonExpiringCache;
     private final Cache<String, Object> myExpandValueSetCache;
+    // ValueSet url per ValueSet instance (weak, identity keys), "" when the ValueSet has no url
+    private final Cache<IBaseResource, String> myValueSetUrlCache;
+    // Expansion key per ValueSet url|version, url|version and a hash of the definition. The definition of a url|version
+    // is fixed once packages are loaded, so it is only encoded and hashed the first time (the validator passes a newly
+    // converted copy of the ValueSet on each call, so a per-instance cache would rarely hit)
+    private final Map<String, String> myValueSetKeys = new ConcurrentHashMap<>();
+    private final CacheSettings mySettings;
+    private final String myName;
+    @Nullable
+    private volatile TerminologyCacheStore myStore;
 
     public NHSDCachingValidationSupport(IValidationSupport theWrap) {
         this(theWrap, CachingValidationSupport.CacheTimeouts.defaultValues());
     }
 
     public NHSDCachingValidationSupport(IValidationSupport theWrap, CachingValidationSupport.CacheTimeouts theCacheTimeouts) {
+        this(theWrap, "default", CacheSettings.fromTimeouts(theCacheTimeouts));
+    }
+
+    /**
+     * @param theName     Used to tag the cache metrics, so several instances can be told apart
+     * @param theSettings Size, weight and expiry of each cache
+     */
+    public NHSDCachingValidationSupport(IValidationSupport theWrap, String theName, CacheSettings theSettings) {
         super(theWrap.getFhirContext(), theWrap);
-        this.myExpandValueSetCache = Caffeine.newBuilder().expireAfterWrite(theCacheTimeouts.getExpandValueSetMillis(), TimeUnit.MILLISECONDS).maximumSize(100L).build();
-        this.myValidateCodeCache = Caffeine.newBuilder().expireAfterWrite(theCacheTimeouts.getValidateCodeMillis(), TimeUnit.MILLISECONDS).maximumSize(5000L).build();
-        this.myLookupCodeCache = Caffeine.newBuilder().expireAfterWrite(theCacheTimeouts.getLookupCodeMillis(), TimeUnit.MILLISECONDS).maximumSize(5000L).build();
-        this.myTranslateCodeCache = Caffeine.newBuilder().expireAfterWrite(theCacheTimeouts.getTranslateCodeMillis(), TimeUnit.MILLISECONDS).maximumSize(5000L).build();
-        this.myCache = Caffeine.newBuilder().expireAfterWrite(theCacheTimeouts.getMiscMillis(), TimeUnit.MILLISECONDS).maximumSize(5000L).build();
+        this.myName = theName;
+        this.mySettings = theSettings;
+        this.myExpandValueSetCache = buildCache(theSettings.getExpandValueSet(), NHSDCachingValidationSupport::weighExpansion);
+        this.myValidateCodeCache = buildCache(theSettings.getValidateCode(), null);
+        this.myLookupCodeCache = buildCache(theSettings.getLookupCode(), null);
+        this.myTranslateCodeCache = buildCache(theSettings.getTranslateCode(), null);
+        this.myCache = buildCache(theSettings.getMisc(), null);
+        this.myValueSetUrlCache = Caffeine.newBuilder().weakKeys().build();
         this.myNonExpiringCache = Collections.synchronizedMap(new HashMap());
         LinkedBlockingQueue<Runnable> executorQueue = new LinkedBlockingQueue(1000);
         BasicThreadFactory threadFactory = (new BasicThreadFactory.Builder()).namingPattern("CachingValidationSupport-%d").daemon(false).priority(5).build();
         this.myBackgroundExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, executorQueue, threadFactory, new ThreadPoolExecutor.DiscardPolicy());
     }
 
+    private static <K> Cache<K, Object> buildCache(CacheSpec theSpec, @Nullable Weigher<Object, Object> theWeigher) {
+        Caffeine<Object, Object> builder = Caffeine.newBuilder()
+                .recordStats()
+                .expireAfter(new WriteExpiry(theSpec.getExpireAfterWriteMillis()));
+        if (theWeigher != null && theSpec.getMaximumWeight() > 0) {
+            builder = builder.maximumWeight(theSpec.getMaximumWeight()).weigher(theWeigher);
+        } else {
+            builder = builder.maximumSize(theSpec.getMaximumSize());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Expire after write, entries reloaded from the store are put with what remains of their original expiry
+     */
+    private static class WriteExpiry implements Expiry<Object, Object> {
+        private final long myNanos;
+
+        private WriteExpiry(long theExpireAfterWriteMillis) {
+            this.myNanos = TimeUnit.MILLISECONDS.toNanos(theExpireAfterWriteMillis);
+        }
+
+        @Override
+        public long expireAfterCreate(Object theKey, Object theValue, long theCurrentTime) {
+            return myNanos;
+        }
+
+        @Override
+        public long expireAfterUpdate(Object theKey, Object theValue, long theCurrentTime, long theCurrentDuration) {
+            return myNanos;
+        }
+
+        @Override
+        public long expireAfterRead(Object theKey, Object theValue, long theCurrentTime, long theCurrentDuration) {
+            return theCurrentDuration;
+        }
+    }
+
+    /**
+     * Put a stored entry so that it expires when it would have had it never left the cache
+     */
+    private static <K> void putStored(Cache<K, Object> theCache, CacheSpec theSpec, K theKey, Object theValue, long theWrittenMillis) {
+        long remaining = theSpec.getExpireAfterWriteMillis() - (System.currentTimeMillis() - theWrittenMillis);
+        if (remaining <= 0) return;
+        theCache.policy().expireVariably().ifPresentOrElse(
+                p -> p.put(theKey, theValue, remaining, TimeUnit.MILLISECONDS),
+                () -> theCache.put(theKey, theValue));
+    }
+
+    /**
+     * Approximate size of a cached expansion in kilobytes, a contains entry with its code, system and display
+     * is taken to be around 256 bytes.
+     */
+    private static int weighExpansion(Object theKey, Object theValue) {
+        if (theValue instanceof Optional && ((Optional<?>) theValue).isPresent()) {
+            Object outcome = ((Optional<?>) theValue).get();
+            if (outcome instanceof ValueSetExpansionOutcome && ((ValueSetExpansionOutcome) outcome).getValueSet() instanceof ValueSet) {
+                ValueSet valueSet = (ValueSet) ((ValueSetExpansionOutcome) outcome).getValueSet();
+                return 1 + countConcepts(valueSet.getExpansion().getContains()) / 4;
+            }
+        }
+        return 1;
+    }
+
+    private static int countConcepts(List<ValueSet.ValueSetExpansionContainsComponent> theContains) {
+        int count = theContains.size();
+        for (ValueSet.ValueSetExpansionContainsComponent contains : theContains) {
+            if (contains.hasContains()) count += countConcepts(contains.getContains());
+        }
+        return count;
+    }
+
+    @Override
+    public void bindTo(@Nonnull MeterRegistry theRegistry) {
+        bindCache(theRegistry, "expandValueSet", this.myExpandValueSetCache);
+        bindCache(theRegistry, "validateCode", this.myValidateCodeCache);
+        bindCache(theRegistry, "lookupCode", this.myLookupCodeCache);
+        bindCache(theRegistry, "translateCode", this.myTranslateCodeCache);
+        bindCache(theRegistry, "misc", this.myCache);
+    }
+
+    private void bindCache(MeterRegistry theRegistry, String theCacheName, Cache<?, Object> theCache) {
+        FunctionCounter.builder("terminology.cache.requests", theCache, c -> c.stats().hitCount())
+                .tag("support", this.myName).tag("cache", theCacheName).tag("result", "hit")
+                .register(theRegistry);
+        FunctionCounter.builder("terminology.cache.requests", theCache, c -> c.stats().missCount())
+                .tag("support", this.myName).tag("cache", theCacheName).tag("result", "miss")
+                .register(theRegistry);
+        FunctionCounter.builder("terminology.cache.evictions", theCache, c -> c.stats().evictionCount())
+                .tag("support", this.myName).tag("cache", theCacheName)
+                .register(theRegistry);
+        Gauge.builder("terminology.cache.size", theCache, Cache::estimatedSize)
+                .tag("support", this.myName).tag("cache", theCacheName)
+                .register(theRegistry);
+    }
+
     public List fetchAllConformanceResources() {
         String key = "fetchAllConformanceResources";
         return (List)this.loadFromCacheWithAsyncRefresh(this.myCache, key, (t) -> {
@@ -102,6 +232,33 @@ public class NHSDCachingValidationSupport extends BaseValidationSupportWrapper i
         });
     }
 
+    /**
+     * Back the code validation, lookup and expansion caches with a persistent store. The caches are warmed from the
+     * store straight away and results loaded from the wrapped support from then on are written to it.
+     */
+    public NHSDCachingValidationSupport setStore(TerminologyCacheStore theStore) {
+        theStore.load(new TerminologyCacheStore.Loader() {
+            @Override
+            public void codeValidation(TerminologyCacheKey theKey, CodeValidationResult theResult, long theWrittenMillis) {
+                putStored(myValidateCodeCache, mySettings.getValidateCode(), theKey, Optional.of(theResult), theWrittenMillis);
+            }
+
+            @Override
+            public void lookupCode(TerminologyCacheKey theKey, LookupCodeResult theResult, long theWrittenMillis) {
+                putStored(myLookupCodeCache, mySettings.getLookupCode(), theKey, Optional.of(theResult), theWrittenMillis);
+            }
+
+            @Override
+            public void expansion(String theKey, ValueSetExpansionOutcome theOutcome, long theWrittenMillis) {
+                putStored(myExpandValueSetCache, mySettings.getExpandValueSet(), theKey, Optional.of(theOutcome), theWrittenMillis);
+            }
+        });
+        ourLog.info("Warmed {} terminology caches from store: {} code validations, {} lookups, {} expansions", this.myName,
+                this.myValidateCodeCache.estimatedSize(), this.myLookupCodeCache.estimatedSize(), this.myExpandValueSetCache.estimatedSize());
+        this.myStore = theStore;
+        return this;
+    }
+
     public boolean isCodeSystemSupported(ValidationSupportContext theValidationSupportContext, String theSystem) {
         String key = "isCodeSystemSupported " + theSystem;
         Boolean retVal = (Boolean)this.loadFromCacheReentrantSafe(this.myCache, key, (t) -> {
@@ -118,26 +275,34 @@ public class NHSDCachingValidationSupport extends BaseValidationSupportWrapper i
             return super.expandValueSet(theValidationSupportContext, theExpansionOptions, theValueSetToExpand);
         } else {
             ValueSetExpansionOptions expansionOptions = (ValueSetExpansionOptions) ObjectUtils.defaultIfNull(theExpansionOptions, EMPTY_EXPANSION_OPTIONS);
-            String var10000 = theValueSetToExpand.getIdElement().getValue();
+            // By url|version and definition rather than id, so a ValueSet changed by a package upgrade isn't served
+            // a stored expansion of its previous definition
+            String var10000 = resolveValueSetKey(theValueSetToExpand);
             String key = "expandValueSet " + var10000 + " " + expansionOptions.isIncludeHierarchy() + " " + expansionOptions.getFilter() + " " + expansionOptions.getOffset() + " " + expansionOptions.getCount();
             return (ValueSetExpansionOutcome)this.loadFromCache(this.myExpandValueSetCache, key, (t) -> {
-                return super.expandValueSet(theValidationSupportContext, theExpansionOptions, theValueSetToExpand);
+                ValueSetExpansionOutcome outcome = super.expandValueSet(theValidationSupportContext, theExpansionOptions, theValueSetToExpand);
+                TerminologyCacheStore store = this.myStore;
+                if (store != null && outcome != null) store.storeExpansion(key, outcome);
+                return outcome;
             });
         }
     }
 
     public CodeValidationResult validateCode(@Nonnull ValidationSupportContext theValidationSupportContext, @Nonnull ConceptValidationOptions theOptions, String theCodeSystem, String theCode, String theDisplay, String theValueSetUrl) {
-        String key = "validateCode " + theCodeSystem + " " + theCode + " " + (String) StringUtils.defaultIfBlank(theValueSetUrl, "NO_VS")+ " " + StringUtils.defaultString(theDisplay, "(null)");
+        TerminologyCacheKey key = TerminologyCacheKey.forValidateCode(theCodeSystem, theCode, theDisplay, theValueSetUrl);
         //if (theDisplay != null)  return super.validateCode(theValidationSupportContext, theOptions, theCodeSystem, theCode, theDisplay, theValueSetUrl);
         return (CodeValidationResult)this.loadFromCache(this.myValidateCodeCache, key, (t) -> {
-            return super.validateCode(theValidationSupportContext, theOptions, theCodeSystem, theCode, theDisplay, theValueSetUrl);
+            return storeCodeValidation(key, super.validateCode(theValidationSupportContext, theOptions, theCodeSystem, theCode, theDisplay, theValueSetUrl));
         });
     }
 
     public LookupCodeResult lookupCode(ValidationSupportContext theValidationSupportContext, String theSystem, String theCode, String theDisplayLanguage) {
-        String key = "lookupCode " + theSystem + " " + theCode + " " + (String)StringUtils.defaultIfBlank(theDisplayLanguage, "NO_LANG");
+        TerminologyCacheKey key = TerminologyCacheKey.forLookupCode(theSystem, theCode, theDisplayLanguage);
         return (LookupCodeResult)this.loadFromCache(this.myLookupCodeCache, key, (t) -> {
-            return super.lookupCode(theValidationSupportContext, theSystem, theCode, theDisplayLanguage);
+            LookupCodeResult result = super.lookupCode(theValidationSupportContext, theSystem, theCode, theDisplayLanguage);
+            TerminologyCacheStore store = this.myStore;
+            if (store != null && result != null) store.storeLookupCode(key, result);
+            return result;
         });
     }
 
@@ -147,24 +312,72 @@ public class NHSDCachingValidationSupport extends BaseValidationSupportWrapper i
 
 
     public CodeValidationResult validateCodeInValueSet(ValidationSupportContext theValidationSupportContext, ConceptValidationOptions theValidationOptions, String theCodeSystem, String theCode, String theDisplay, @Nonnull IBaseResource theValueSet) {
-        BaseRuntimeChildDefinition urlChild = this.myCtx.getResourceDefinition(theValueSet).getChildByName("url");
-        Optional<String> valueSetUrl = urlChild.getAccessor().getValues(theValueSet).stream().map((t) -> {
-            return ((IPrimitiveType)t).getValueAsString();
-        }).filter((t) -> {
-            return StringUtils.isNotBlank(t);
-        }).findFirst();
-        if (valueSetUrl.isPresent()) {
-            String var10000 = theValidationOptions.toString();
-            String key = "validateCodeInValueSet " + var10000 + " " + StringUtils.defaultString(theCodeSystem, "(null)") + " " + StringUtils.defaultString(theCode, "(null)") + " " + StringUtils.defaultString(theDisplay, "(null)") + " " + (String)valueSetUrl.get();
+        String valueSetUrl = this.myValueSetUrlCache.get(theValueSet, this::resolveValueSetUrl);
+        if (StringUtils.isNotBlank(valueSetUrl)) {
+            // ConceptValidationOptions only carries inferSystem, previously included in the key via toString()
+            boolean inferSystem = theValidationOptions != null && theValidationOptions.isInferSystem();
+            TerminologyCacheKey key = TerminologyCacheKey.forValidateCodeInValueSet(inferSystem, theCodeSystem, theCode, theDisplay, valueSetUrl);
             //if (theDisplay != null) return super.validateCodeInValueSet(theValidationSupportContext, theValidationOptions, theCodeSystem, theCode, theDisplay, theValueSet);
             return (CodeValidationResult)this.loadFromCache(this.myValidateCodeCache, key, (t) -> {
-                return super.validateCodeInValueSet(theValidationSupportContext, theValidationOptions, theCodeSystem, theCode, theDisplay, theValueSet);
+                return storeCodeValidation(key, super.validateCodeInValueSet(theValidationSupportContext, theValidationOptions, theCodeSystem, theCode, theDisplay, theValueSet));
             });
         } else {
             return super.validateCodeInValueSet(theValidationSupportContext, theValidationOptions, theCodeSystem, theCode, theDisplay, theValueSet);
         }
     }
 
+    private String resolveValueSetUrl(IBaseResource theValueSet) {
+        BaseRuntimeChildDefinition urlChild = this.myCtx.getResourceDefinition(theValueSet).getChildByName("url");
+        return urlChild.getAccessor().getValues(theValueSet).stream().map((t) -> {
+            return ((IPrimitiveType)t).getValueAsString();
+        }).filter((t) -> {
+            return StringUtils.isNotBlank(t);
+        }).findFirst().orElse("");
+    }
+
+    private String resolveValueSetKey(IBaseResource theValueSet) {
+        String url = this.myValueSetUrlCache.get(theValueSet, this::resolveValueSetUrl);
+        // Without a url there is nothing to tell versions apart, keyed by id as before
+        if (StringUtils.isBlank(url)) return theValueSet.getIdElement().getValue();
+        String version = this.myCtx.getResourceDefinition(theValueSet).getChildByName("version").getAccessor()
+                .getValues(theValueSet).stream().map((t) -> ((IPrimitiveType) t).getValueAsString())
+                .filter(StringUtils::isNotBlank).findFirst().orElse("");
+        return this.myValueSetKeys.computeIfAbsent(url + "|" + version, (t) -> t + " " + hashDefinition(theValueSet));
+    }
+
+    private String hashDefinition(IBaseResource theValueSet) {
+        String definition = this.myCtx.newJsonParser()
+                .setDontEncodeElements(Set.of("ValueSet.expansion"))
+                .encodeResourceToString(theValueSet);
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(definition.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(hash);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean isValidateCodeCached(TerminologyCacheKey theKey) {
+        return this.myValidateCodeCache.getIfPresent(theKey) != null;
+    }
+
+    /**
+     * Seed the validate-code cache with a result obtained elsewhere (e.g. a batch request)
+     */
+    public void primeValidateCode(TerminologyCacheKey theKey, @Nullable CodeValidationResult theResult) {
+        this.myValidateCodeCache.put(theKey, Optional.ofNullable(theResult));
+        storeCodeValidation(theKey, theResult);
+    }
+
+    @Nullable
+    private CodeValidationResult storeCodeValidation(TerminologyCacheKey theKey, @Nullable CodeValidationResult theResult) {
+        TerminologyCacheStore store = this.myStore;
+        if (store != null && theResult != null) {
+            store.storeCodeValidation(theKey, theResult);
+        }
+        return theResult;
+    }
+
     public TranslateConceptResults translateConcept(TranslateCodeRequest theRequest) {
         return (TranslateConceptResults)this.loadFromCache(this.myTranslateCodeCache, theRequest, (k) -> {
             return super.translateConcept(theRequest);
@@ -192,6 +405,9 @@ public class NHSDCachingValidationSupport extends BaseValidationSupportWrapper i
         if (result != null && result.isPresent()) {
             return result.get();
         } else {
+            // Not coalesced, the loader can call back into this support for other keys (e.g. an expansion needing a
+            // code system check) and waiting on another thread's load could then deadlock. The remote calls underneath
+            // are coalesced instead, see RemoteTerminologyServiceValidationSupport.
             T value = theLoader.apply(theKey);
 
             assert value != null;
@@ -225,9 +441,123 @@ public class NHSDCachingValidationSupport extends BaseValidationSupportWrapper i
         this.myLookupCodeCache.invalidateAll();
         this.myCache.invalidateAll();
         this.myValidateCodeCache.invalidateAll();
+        this.myValueSetUrlCache.invalidateAll();
         this.myNonExpiringCache.clear();
     }
 
+    /**
+     * Bounds for a single cache. When a maximum weight (in kilobytes) is set and the cache has a weigher it is used
+     * instead of the entry count.
+     */
+    public static class CacheSpec {
+        private long myMaximumSize;
+        private long myMaximumWeight;
+        private long myExpireAfterWriteMillis;
+
+        public CacheSpec() {
+        }
+
+        public CacheSpec(long theMaximumSize, long theExpireAfterWriteMillis) {
+            this.myMaximumSize = theMaximumSize;
+            this.myExpireAfterWriteMillis = theExpireAfterWriteMillis;
+        }
+
+        public long getMaximumSize() {
+            return this.myMaximumSize;
+        }
+
+        public CacheSpec setMaximumSize(long theMaximumSize) {
+            this.myMaximumSize = theMaximumSize;
+            return this;
+        }
+
+        public long getMaximumWeight() {
+            return this.myMaximumWeight;
+        }
+
+        public CacheSpec setMaximumWeight(long theMaximumWeight) {
+            this.myMaximumWeight = theMaximumWeight;
+            return this;
+        }
+
+        public long getExpireAfterWriteMillis() {
+            return this.myExpireAfterWriteMillis;
+        }
+
+        public CacheSpec setExpireAfterWriteMillis(long theExpireAfterWriteMillis) {
+            this.myExpireAfterWriteMillis = theExpireAfterWriteMillis;
+            return this;
+        }
+    }
+
+    public static class CacheSettings {
+        private CacheSpec myValidateCode;
+        private CacheSpec myLookupCode;
+        private CacheSpec myTranslateCode;
+        private CacheSpec myExpandValueSet;
+        private CacheSpec myMisc;
+
+        public CacheSettings() {
+        }
+
+        public CacheSpec getValidateCode() {
+            return this.myValidateCode;
+        }
+
+        public CacheSettings setValidateCode(CacheSpec theValidateCode) {
+            this.myValidateCode = theValidateCode;
+            return this;
+        }
+
+        public CacheSpec getLookupCode() {
+            return this.myLookupCode;
+        }
+
+        public CacheSettings setLookupCode(CacheSpec theLookupCode) {
+            this.myLookupCode = theLookupCode;
+            return this;
+        }
+
+        public CacheSpec getTranslateCode() {
+            return this.myTranslateCode;
+        }
+
+        public CacheSettings setTranslateCode(CacheSpec theTranslateCode) {
+            this.myTranslateCode = theTranslateCode;
+            return this;
+        }
+
+        public CacheSpec getExpandValueSet() {
+            return this.myExpandValueSet;
+        }
+
+        public CacheSettings setExpandValueSet(CacheSpec theExpandValueSet) {
+            this.myExpandValueSet = theExpandValueSet;
+            return this;
+        }
+
+        public CacheSpec getMisc() {
+            return this.myMisc;
+        }
+
+        public CacheSettings setMisc(CacheSpec theMisc) {
+            this.myMisc = theMisc;
+            return this;
+        }
+
+        /**
+         * The original fixed sizes, 100 expansions and 5000 entries for everything else
+         */
+        public static CacheSettings fromTimeouts(CachingValidationSupport.CacheTimeouts theCacheTimeouts) {
+            return new CacheSettings()
+                    .setExpandValueSet(new CacheSpec(100L, theCacheTimeouts.getExpandValueSetMillis()))
+                    .setValidateCode(new CacheSpec(5000L, theCacheTimeouts.getValidateCodeMillis()))
+                    .setLookupCode(new CacheSpec(5000L, theCacheTimeouts.getLookupCodeMillis()))
+                    .setTranslateCode(new CacheSpec(5000L, theCacheTimeouts.getTranslateCodeMillis()))
+                    .setMisc(new CacheSpec(5000L, theCacheTimeouts.getMiscMillis()));
+        }
+    }
+
     public static class CacheTimeouts {
         private long myTranslateCodeMillis;
         private long myLookupCodeMillis;
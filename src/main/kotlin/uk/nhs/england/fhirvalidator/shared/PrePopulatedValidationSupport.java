@@ -21,6 +21,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.function.Supplier;
 
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 
@@ -34,6 +35,16 @@ public class PrePopulatedValidationSupport extends BaseStaticResourceValidationS
     private final Map<String, IBaseResource> myStructureDefinitions;
     private final Map<String, IBaseResource> myValueSets;
     private final Map<String, IBaseResource> myOtherConformanceResources;
+    // CodeSystems and ValueSets known from a package index, only parsed when first fetched
+    private final Map<String, LazyResource> myLazyCodeSystems = new HashMap<>();
+    private final Map<String, LazyResource> myLazyValueSets = new HashMap<>();
+
+    /**
+     * Resource types held by this class, anything else passed to {@link #addResource(IBaseResource)} is ignored
+     */
+    public static final Set<String> RESOURCE_TYPES = Set.of("StructureDefinition", "CodeSystem", "ValueSet",
+            "Questionnaire", "MessageDefinition", "OperationDefinition", "SearchParameter", "CapabilityStatement",
+            "ImplementationGuide", "ConceptMap", "NamingSystem");
 
 
     /**
@@ -107,6 +118,12 @@ public class PrePopulatedValidationSupport extends BaseStaticResourceValidationS
         Validate.notNull(url, "the" + theResourceName + ".getUrl() must not return null");
         Validate.notBlank(url, "the" + theResourceName + ".getUrl() must return a value");
 
+        Optional<IBase> versionValue = resourceDef.getChildByName("version").getAccessor().getFirstValueOrNull(theResource);
+        String version = versionValue.map(t -> (((IPrimitiveType<?>) t).getValueAsString())).orElse(null);
+        return urlsFor(url, version);
+    }
+
+    private static Set<String> urlsFor(String url, @Nullable String version) {
         String urlWithoutVersion;
         int pipeIdx = url.indexOf('|');
         if (pipeIdx != -1) {
@@ -117,8 +134,6 @@ public class PrePopulatedValidationSupport extends BaseStaticResourceValidationS
 
         HashSet<String> retVal = Sets.newHashSet(url, urlWithoutVersion);
 
-        Optional<IBase> versionValue = resourceDef.getChildByName("version").getAccessor().getFirstValueOrNull(theResource);
-        String version = versionValue.map(t -> (((IPrimitiveType<?>) t).getValueAsString())).orElse(null);
         if (isNotBlank(version)) {
             retVal.add(urlWithoutVersion + "|" + version);
         }
@@ -145,7 +160,7 @@ public class PrePopulatedValidationSupport extends BaseStaticResourceValidationS
         addToMap(theStructureDefinition, myStructureDefinitions, url);
     }
 
-    private <T extends IBaseResource> void addToMap(T theResource, Map<String, T> theMap, Collection<String> theUrls) {
+    private <T> void addToMap(T theResource, Map<String, T> theMap, Collection<String> theUrls) {
         for (String urls : theUrls) {
             if (isNotBlank(urls)) {
                 theMap.put(urls, theResource);
@@ -181,6 +196,25 @@ public class PrePopulatedValidationSupport extends BaseStaticResourceValidationS
         addToMap(theValueSet, myValueSets, urls);
     }
 
+    /**
+     * Add a CodeSystem or ValueSet known only by its url and version (e.g. from a package .index.json), the loader
+     * is called to parse it the first time it is fetched.
+     */
+    public void addLazyResource(String theResourceType, String theUrl, @Nullable String theVersion, Supplier<IBaseResource> theLoader) {
+        Validate.notBlank(theUrl, "theUrl must not be blank");
+        Set<String> urls = urlsFor(theUrl, theVersion);
+        switch (theResourceType) {
+            case "CodeSystem":
+                addToMap(new LazyResource(theLoader), myLazyCodeSystems, urls);
+                break;
+            case "ValueSet":
+                addToMap(new LazyResource(theLoader), myLazyValueSets, urls);
+                break;
+            default:
+                throw new IllegalArgumentException("Only CodeSystem and ValueSet can be loaded lazily - Got: " + theResourceType);
+        }
+    }
+
     public void addOtherConformanceResource(IBaseResource theResource) {
         Set<String> urls = processResourceAndReturnUrls(theResource, theResource.getClass().getSimpleName());
         addToMap(theResource, myOtherConformanceResources, urls);
@@ -228,6 +262,21 @@ public class PrePopulatedValidationSupport extends BaseStaticResourceValidationS
 
     @Override
     public List<IBaseResource> fetchAllConformanceResources() {
+        ArrayList<IBaseResource> retVal = new ArrayList<>();
+        retVal.addAll(myCodeSystems.values());
+        retVal.addAll(myStructureDefinitions.values());
+        retVal.addAll(myValueSets.values());
+        retVal.addAll(myOtherConformanceResources.values());
+        // Everything is asked for, so the lazy resources have to be parsed
+        addResolved(retVal, myLazyCodeSystems);
+        addResolved(retVal, myLazyValueSets);
+        return retVal;
+    }
+
+    /**
+     * As {@link #fetchAllConformanceResources()} but without parsing the lazy CodeSystems and ValueSets
+     */
+    public List<IBaseResource> fetchLoadedConformanceResources() {
         ArrayList<IBaseResource> retVal = new ArrayList<>();
         retVal.addAll(myCodeSystems.values());
         retVal.addAll(myStructureDefinitions.values());
@@ -244,12 +293,16 @@ public class PrePopulatedValidationSupport extends BaseStaticResourceValidationS
 
     @Override
     public IBaseResource fetchCodeSystem(String theSystem) {
-        return myCodeSystems.get(theSystem);
+        IBaseResource resource = myCodeSystems.get(theSystem);
+        if (resource == null) resource = resolve(myLazyCodeSystems.get(theSystem));
+        return resource;
     }
 
     @Override
     public IBaseResource fetchValueSet(String theUri) {
-        return myValueSets.get(theUri);
+        IBaseResource resource = myValueSets.get(theUri);
+        if (resource == null) resource = resolve(myLazyValueSets.get(theUri));
+        return resource;
     }
 
     @Override
@@ -265,6 +318,8 @@ public class PrePopulatedValidationSupport extends BaseStaticResourceValidationS
         if (resource == null) resource = myCodeSystems.get(theUri);
         if (resource == null) resource = myValueSets.get(theUri);
         if (resource == null) resource = myStructureDefinitions.get(theUri);
+        if (resource == null) resource = resolve(myLazyCodeSystems.get(theUri));
+        if (resource == null) resource = resolve(myLazyValueSets.get(theUri));
         return (T) resource;
     }
 
@@ -276,11 +331,49 @@ public class PrePopulatedValidationSupport extends BaseStaticResourceValidationS
             if (codeSystem.hasContent() &&codeSystem.getContent().equals(CodeSystem.CodeSystemContentMode.NOTPRESENT))
                 return false;
         }*/
-         return myCodeSystems.containsKey(theSystem);
+         return myCodeSystems.containsKey(theSystem) || myLazyCodeSystems.containsKey(theSystem);
     }
 
     @Override
     public boolean isValueSetSupported(ValidationSupportContext theValidationSupportContext, String theValueSetUrl) {
-        return myValueSets.containsKey(theValueSetUrl);
+        return myValueSets.containsKey(theValueSetUrl) || myLazyValueSets.containsKey(theValueSetUrl);
+    }
+
+    @Nullable
+    private static IBaseResource resolve(@Nullable LazyResource theLazyResource) {
+        return theLazyResource != null ? theLazyResource.get() : null;
+    }
+
+    private static void addResolved(List<IBaseResource> theList, Map<String, LazyResource> theLazyResources) {
+        for (LazyResource lazyResource : theLazyResources.values()) {
+            IBaseResource resource = lazyResource.get();
+            if (resource != null) theList.add(resource);
+        }
+    }
+
+    /**
+     * Parses the resource once, on first use. A resource which fails to load stays null rather than being retried.
+     */
+    private static class LazyResource {
+        // Volatile as it is read outside the lock, cleared (after myResource is set) once the resource is loaded
+        private volatile Supplier<IBaseResource> myLoader;
+        private volatile IBaseResource myResource;
+
+        LazyResource(Supplier<IBaseResource> theLoader) {
+            myLoader = theLoader;
+        }
+
+        @Nullable
+        IBaseResource get() {
+            if (myLoader != null) {
+                synchronized (this) {
+                    if (myLoader != null) {
+                        myResource = myLoader.get();
+                        myLoader = null;
+                    }
+                }
+            }
+            return myResource;
+        }
     }
 }
@@ -5,11 +5,15 @@ import ca.uhn.fhir.context.FhirVersionEnum;
 import ca.uhn.fhir.context.support.*;
 import ca.uhn.fhir.i18n.Msg;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.client.api.IRestfulClientFactory;
 import ca.uhn.fhir.rest.gclient.IOperationUnnamed;
 import ca.uhn.fhir.rest.server.exceptions.InvalidRequestException;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 import ca.uhn.fhir.util.BundleUtil;
 import ca.uhn.fhir.util.ParametersUtil;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
 
 import java.util.*;
 import java.util.stream.Collectors;
@@ -34,18 +38,22 @@ import static org.hl7.fhir.common.hapi.validation.support.RemoteTerminologyServi
 import static org.hl7.fhir.common.hapi.validation.support.RemoteTerminologyServiceValidationSupport.ERROR_CODE_UNKNOWN_CODE_IN_VALUE_SET;
 
 
-public class RemoteTerminologyServiceValidationSupport extends BaseValidationSupport implements IValidationSupport {
+public class RemoteTerminologyServiceValidationSupport extends BaseValidationSupport implements IValidationSupport, MeterBinder {
     private static final Logger log = LoggerFactory.getLogger(RemoteTerminologyServiceValidationSupport.class);
 
+    // Concurrent misses for the same coding share one $validate-code call
+    private final InFlightRequests<TerminologyCacheKey, CodeValidationResult> myInFlightValidateCode = new InFlightRequests<>();
+
 
     private String myBaseUrl;
     private List<Object> myClientInterceptors = new ArrayList();
+    private IRestfulClientFactory myClientFactory;
+    // Built once and reused, rebuilt if the url, interceptors or factory change
+    private volatile IGenericClient myClient;
     private org.hl7.fhir.common.hapi.validation.support.RemoteTerminologyServiceValidationSupport loinc;
     public RemoteTerminologyServiceValidationSupport(FhirContext theFhirContext, org.hl7.fhir.common.hapi.validation.support.RemoteTerminologyServiceValidationSupport loinc) {
 
         super(theFhirContext);
-        theFhirContext.getRestfulClientFactory().setConnectTimeout(2*60*1000); // Oh yes
-        System.out.println(theFhirContext.getRestfulClientFactory().getConnectTimeout());
         this.loinc = loinc;
     }
 
@@ -159,18 +167,100 @@ public class RemoteTerminologyServiceValidationSupport extends BaseValidationSup
     }
 
     private IGenericClient provideClient() {
-        IGenericClient retVal = this.myCtx.newRestfulGenericClient(this.myBaseUrl);
-        Iterator var2 = this.myClientInterceptors.iterator();
-
-        while(var2.hasNext()) {
-            Object next = var2.next();
-            retVal.registerInterceptor(next);
+        IGenericClient retVal = this.myClient;
+        if (retVal == null) {
+            synchronized (this) {
+                retVal = this.myClient;
+                if (retVal == null) {
+                    IRestfulClientFactory clientFactory = this.myClientFactory != null ? this.myClientFactory : this.myCtx.getRestfulClientFactory();
+                    retVal = clientFactory.newGenericClient(this.myBaseUrl);
+                    Iterator var2 = this.myClientInterceptors.iterator();
+
+                    while(var2.hasNext()) {
+                        Object next = var2.next();
+                        retVal.registerInterceptor(next);
+                    }
+                    this.myClient = retVal;
+                }
+            }
         }
 
         return retVal;
     }
 
+    @Override
+    public void bindTo(@Nonnull MeterRegistry theRegistry) {
+        FunctionCounter.builder("terminology.remote.coalesced", myInFlightValidateCode, InFlightRequests::getCallsSaved)
+                .description("$validate-code calls avoided by sharing an identical in flight call")
+                .tag("operation", "validate-code")
+                .register(theRegistry);
+    }
+
     protected CodeValidationResult invokeRemoteValidateCode(String theCodeSystem, String theCode, String theDisplay, String theValueSetUrl, IBaseResource theValueSet) {
+        if (StringUtils.isBlank(theCode)) {
+            return null;
+        }
+        String valueSetUrl = theValueSetUrl;
+        if (theValueSet != null) {
+            // A ValueSet without a url can't be identified, so it is not shared
+            if (!(theValueSet instanceof ValueSet) || !((ValueSet) theValueSet).hasUrl()) {
+                return doInvokeRemoteValidateCode(theCodeSystem, theCode, theDisplay, theValueSetUrl, theValueSet);
+            }
+            valueSetUrl = ((ValueSet) theValueSet).getUrl();
+        }
+        TerminologyCacheKey key = TerminologyCacheKey.forValidateCode(theCodeSystem, theCode, theDisplay, valueSetUrl);
+        return myInFlightValidateCode.execute(key, () -> doInvokeRemoteValidateCode(theCodeSystem, theCode, theDisplay, theValueSetUrl, theValueSet));
+    }
+
+    /**
+     * Whether codes from this system are validated by this server, LOINC may be delegated to a separate server
+     */
+    public boolean isValidatedRemotely(String theCodeSystem) {
+        return !(loinc != null && "http://loinc.org".equals(theCodeSystem));
+    }
+
+    /**
+     * Validates several codings (CodeSystem $validate-code, no ValueSet) in one FHIR batch Bundle.
+     *
+     * @return results for the codings the server answered, codings with a failed batch entry are omitted
+     */
+    public Map<TerminologyCacheKey, CodeValidationResult> validateCodesInBatch(List<TerminologyCacheKey> theCodings) {
+        Map<TerminologyCacheKey, CodeValidationResult> retVal = new LinkedHashMap<>();
+        if (theCodings.isEmpty()) return retVal;
+        Bundle batch = new Bundle();
+        batch.setType(Bundle.BundleType.BATCH);
+        for (TerminologyCacheKey coding : theCodings) {
+            Parameters input = new Parameters();
+            input.addParameter().setName("url").setValue(new UriType(coding.getSystem()));
+            input.addParameter().setName("code").setValue(new StringType(coding.getCode()));
+            if (StringUtils.isNotBlank(coding.getDisplay())) {
+                input.addParameter().setName("display").setValue(new StringType(coding.getDisplay()));
+            }
+            batch.addEntry()
+                    .setResource(input)
+                    .getRequest()
+                    .setMethod(Bundle.HTTPVerb.POST)
+                    .setUrl("CodeSystem/$validate-code");
+        }
+        Bundle response = this.provideClient().transaction().withBundle(batch).execute();
+        // Batch responses have one entry per request entry, in the same order
+        for (int i = 0; i < theCodings.size() && i < response.getEntry().size(); i++) {
+            TerminologyCacheKey coding = theCodings.get(i);
+            Resource resource = response.getEntry().get(i).getResource();
+            if (resource instanceof Parameters) {
+                ValidationErrorMessageBuilder errorMessageBuilder = theServerMessage -> getErrorMessage(
+                        ERROR_CODE_UNKNOWN_CODE_IN_CODE_SYSTEM, coding.getSystem(), coding.getCode(), getBaseUrl(), theServerMessage);
+                try {
+                    retVal.put(coding, createCodeValidationResult((Parameters) resource, errorMessageBuilder, coding.getCode()));
+                } catch (IllegalArgumentException ex) {
+                    log.warn("Batch $validate-code response for {}#{} has no result", coding.getSystem(), coding.getCode());
+                }
+            }
+        }
+        return retVal;
+    }
+
+    private CodeValidationResult doInvokeRemoteValidateCode(String theCodeSystem, String theCode, String theDisplay, String theValueSetUrl, IBaseResource theValueSet) {
 
         if (StringUtils.isBlank(theCode)) {
             return null;
@@ -272,11 +362,22 @@ public class RemoteTerminologyServiceValidationSupport extends BaseValidationSup
     public void setBaseUrl(String theBaseUrl) {
         Validate.notBlank(theBaseUrl, "theBaseUrl must be provided", new Object[0]);
         this.myBaseUrl = theBaseUrl;
+        this.myClient = null;
+    }
+
+    /**
+     * Client factory (and so HTTP connection pool and timeouts) used for the terminology server, defaults to the
+     * FhirContext's shared factory
+     */
+    public void setClientFactory(IRestfulClientFactory theClientFactory) {
+        this.myClientFactory = theClientFactory;
+        this.myClient = null;
     }
 
-    public void addClientInterceptor(@Nonnull Object theClientInterceptor) {
+    public synchronized void addClientInterceptor(@Nonnull Object theClientInterceptor) {
         Validate.notNull(theClientInterceptor, "theClientInterceptor must not be null", new Object[0]);
         this.myClientInterceptors.add(theClientInterceptor);
+        this.myClient = null;
     }
 
     @Nullable
@@ -304,32 +405,7 @@ public class RemoteTerminologyServiceValidationSupport extends BaseValidationSup
 
         IBaseParameters output = (IBaseParameters)((IOperationUnnamed)client.operation().onType(resourceType)).named("lookup").withParameters(input).execute();
         if (output != null && output instanceof Parameters) {
-            Parameters parameters = (Parameters) output;
-            LookupCodeResultUK lookupCodeResult = new LookupCodeResultUK();
-            lookupCodeResult.setOriginalParameters(parameters);
-            for (Parameters.ParametersParameterComponent parametersParameterComponent : parameters.getParameter()) {
-                if (parametersParameterComponent.getName().equals("code")) {
-                    lookupCodeResult.setFound(true);
-                } else
-                if (parametersParameterComponent.getName().equals("display")) {
-                    lookupCodeResult.setCodeDisplay(((StringType) parametersParameterComponent.getValue()).getValue());
-                } else if (parametersParameterComponent.getName().equals("name")) {
-                    lookupCodeResult.setCodeSystemDisplayName(((StringType) parametersParameterComponent.getValue()).getValue());
-                } else if (parametersParameterComponent.getName().equals("version")) {
-                    lookupCodeResult.setCodeSystemVersion(((StringType) parametersParameterComponent.getValue()).getValue());
-                } else if (parametersParameterComponent.getName().equals("code")) {
-                    lookupCodeResult.setSearchedForCode(((StringType) parametersParameterComponent.getValue()).getValue());
-                } else if (parametersParameterComponent.getName().equals("system")) {
-                    lookupCodeResult.setSearchedForSystem(((UriType) parametersParameterComponent.getValue()).getValue());
-                }
-                else if (parametersParameterComponent.getValue() instanceof StringType) {
-                    lookupCodeResult.getProperties().add(new StringConceptProperty(parametersParameterComponent.getName(), ((StringType) parametersParameterComponent.getValue()).getValue()));
-                } else if (parametersParameterComponent.getValue() instanceof CodeType) {
-                    CodeType codeType = (CodeType) parametersParameterComponent.getValue();
-                    lookupCodeResult.getProperties().add(new CodingConceptProperty(parametersParameterComponent.getName(),codeType.getSystem(),codeType.getCode(),codeType.getDisplay()));
-                }
-            }
-            return  lookupCodeResult;
+            return LookupCodeResultUK.fromParameters((Parameters) output);
         }
         return new LookupCodeResult();
     }
@@ -0,0 +1,115 @@
+package uk.nhs.england.fhirvalidator.shared;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Objects;
+
+/**
+ * Cache key for the code validation and lookup caches in {@link NHSDCachingValidationSupport}.
+ * <p>
+ * Replaces the concatenated String keys, the hash is computed once when the key is created so a cache hit
+ * only costs this object.
+ * </p>
+ */
+public final class TerminologyCacheKey {
+
+    public enum Operation {
+        VALIDATE_CODE,
+        VALIDATE_CODE_IN_VALUE_SET,
+        LOOKUP_CODE
+    }
+
+    private final Operation myOperation;
+    private final String mySystem;
+    private final String myCode;
+    private final String myDisplay;
+    private final String myValueSetUrl;
+    private final boolean myInferSystem;
+    private final int myHash;
+
+    private TerminologyCacheKey(Operation theOperation, String theSystem, String theCode, String theDisplay, String theValueSetUrl, boolean theInferSystem) {
+        myOperation = theOperation;
+        mySystem = theSystem;
+        myCode = theCode;
+        myDisplay = theDisplay;
+        myValueSetUrl = theValueSetUrl;
+        myInferSystem = theInferSystem;
+        int hash = theOperation.hashCode();
+        hash = 31 * hash + Objects.hashCode(theSystem);
+        hash = 31 * hash + Objects.hashCode(theCode);
+        hash = 31 * hash + Objects.hashCode(theDisplay);
+        hash = 31 * hash + Objects.hashCode(theValueSetUrl);
+        hash = 31 * hash + (theInferSystem ? 1 : 0);
+        myHash = hash;
+    }
+
+    public static TerminologyCacheKey forValidateCode(String theSystem, String theCode, String theDisplay, String theValueSetUrl) {
+        return new TerminologyCacheKey(Operation.VALIDATE_CODE, theSystem, theCode, theDisplay, StringUtils.defaultIfBlank(theValueSetUrl, null), false);
+    }
+
+    public static TerminologyCacheKey forValidateCodeInValueSet(boolean theInferSystem, String theSystem, String theCode, String theDisplay, String theValueSetUrl) {
+        return new TerminologyCacheKey(Operation.VALIDATE_CODE_IN_VALUE_SET, theSystem, theCode, theDisplay, theValueSetUrl, theInferSystem);
+    }
+
+    /**
+     * The display language is held in the display slot
+     */
+    public static TerminologyCacheKey forLookupCode(String theSystem, String theCode, String theDisplayLanguage) {
+        return new TerminologyCacheKey(Operation.LOOKUP_CODE, theSystem, theCode, StringUtils.defaultIfBlank(theDisplayLanguage, null), null, false);
+    }
+
+    /**
+     * Recreate a key from its parts, e.g. when reading persisted entries
+     */
+    public static TerminologyCacheKey of(Operation theOperation, String theSystem, String theCode, String theDisplay, String theValueSetUrl, boolean theInferSystem) {
+        return new TerminologyCacheKey(theOperation, theSystem, theCode, theDisplay, theValueSetUrl, theInferSystem);
+    }
+
+    public Operation getOperation() {
+        return myOperation;
+    }
+
+    public String getSystem() {
+        return mySystem;
+    }
+
+    public String getCode() {
+        return myCode;
+    }
+
+    public String getDisplay() {
+        return myDisplay;
+    }
+
+    public String getValueSetUrl() {
+        return myValueSetUrl;
+    }
+
+    public boolean isInferSystem() {
+        return myInferSystem;
+    }
+
+    @Override
+    public boolean equals(Object theOther) {
+        if (this == theOther) return true;
+        if (!(theOther instanceof TerminologyCacheKey)) return false;
+        TerminologyCacheKey other = (TerminologyCacheKey) theOther;
+        return myHash == other.myHash
+                && myOperation == other.myOperation
+                && myInferSystem == other.myInferSystem
+                && Objects.equals(myCode, other.myCode)
+                && Objects.equals(mySystem, other.mySystem)
+                && Objects.equals(myDisplay, other.myDisplay)
+                && Objects.equals(myValueSetUrl, other.myValueSetUrl);
+    }
+
+    @Override
+    public int hashCode() {
+        return myHash;
+    }
+
+    @Override
+    public String toString() {
+        return myOperation + " " + mySystem + " " + myCode + " " + myDisplay + " " + myValueSetUrl;
+    }
+}
@@ -0,0 +1,33 @@
+package uk.nhs.england.fhirvalidator.shared;
+
+import ca.uhn.fhir.context.support.IValidationSupport;
+
+/**
+ * Second tier behind the code validation, lookup and expansion caches of {@link NHSDCachingValidationSupport},
+ * e.g. on disk so that results survive a restart.
+ * <p>
+ * Store calls are made on the validation threads, implementations are expected to write behind.
+ * </p>
+ */
+public interface TerminologyCacheStore {
+
+    /**
+     * Pass every stored entry which is still current to the loader, called once when the store is attached.
+     * Entries are passed with the time they were first written, so they expire as they would have in memory.
+     */
+    void load(Loader theLoader);
+
+    void storeCodeValidation(TerminologyCacheKey theKey, IValidationSupport.CodeValidationResult theResult);
+
+    void storeLookupCode(TerminologyCacheKey theKey, IValidationSupport.LookupCodeResult theResult);
+
+    void storeExpansion(String theKey, IValidationSupport.ValueSetExpansionOutcome theOutcome);
+
+    interface Loader {
+        void codeValidation(TerminologyCacheKey theKey, IValidationSupport.CodeValidationResult theResult, long theWrittenMillis);
+
+        void lookupCode(TerminologyCacheKey theKey, IValidationSupport.LookupCodeResult theResult, long theWrittenMillis);
+
+        void expansion(String theKey, IValidationSupport.ValueSetExpansionOutcome theOutcome, long theWrittenMillis);
+    }
+}
@@ -0,0 +1,58 @@
+package uk.nhs.england.fhirvalidator.util
+
+import java.util.BitSet
+
+/**
+ * Finds which of a fixed set of substrings occur in a text in a single scan of the text (Aho-Corasick), rather than
+ * a separate contains() per substring.
+ */
+class MultiPatternMatcher(patterns: List<String>) {
+
+    private class Node {
+        val next = HashMap<Char, Node>(4)
+        var fail: Node? = null
+        // Patterns ending here, including those ending at the fail nodes
+        val matches = BitSet()
+    }
+
+    private val root = Node()
+
+    init {
+        patterns.forEachIndexed { index, pattern ->
+            var node = root
+            for (c in pattern) node = node.next.getOrPut(c) { Node() }
+            node.matches.set(index)
+        }
+        // Breadth first, so a node's fail node is complete before the node itself
+        val queue = ArrayDeque<Node>()
+        for (child in root.next.values) {
+            child.fail = root
+            queue.addLast(child)
+        }
+        while (queue.isNotEmpty()) {
+            val node = queue.removeFirst()
+            for ((c, child) in node.next) {
+                var fail = node.fail
+                while (fail != null && !fail.next.containsKey(c)) fail = fail.fail
+                child.fail = fail?.next?.get(c) ?: root
+                child.matches.or(child.fail!!.matches)
+                queue.addLast(child)
+            }
+        }
+    }
+
+    /**
+     * @return the indexes of the patterns found in [text]
+     */
+    fun find(text: String?): BitSet {
+        val found = BitSet()
+        if (text == null) return found
+        var node = root
+        for (c in text) {
+            while (node !== root && !node.next.containsKey(c)) node = node.fail!!
+            node = node.next[c] ?: root
+            if (!node.matches.isEmpty) found.or(node.matches)
+        }
+        return found
+    }
+}
@@ -75,3 +75,28 @@ fun createSTU3OperationOutcomeIssue(diagnostics: String, expression: String?): o
     expression?.let { issue.addExpression(it) }
     return issue
 }
+
+fun countErrors(issues: List<OperationOutcome.OperationOutcomeIssueComponent>): Int =
+    issues.count { it.severity == OperationOutcome.IssueSeverity.ERROR || it.severity == OperationOutcome.IssueSeverity.FATAL }
+
+/**
+ * Keeps the first maxErrors errors (and all other issues). A note is added when errors were dropped or, with
+ * stopped, when validation was cut short.
+ */
+fun limitErrors(
+    issues: List<OperationOutcome.OperationOutcomeIssueComponent>,
+    maxErrors: Int,
+    stopped: Boolean
+): List<OperationOutcome.OperationOutcomeIssueComponent> {
+    var errors = 0
+    val limited = issues.filter {
+        if (it.severity != OperationOutcome.IssueSeverity.ERROR && it.severity != OperationOutcome.IssueSeverity.FATAL) return@filter true
+        errors++
+        errors <= maxErrors
+    }
+    if (errors <= maxErrors && !stopped) return limited
+    return limited + OperationOutcome.OperationOutcomeIssueComponent()
+        .setCode(OperationOutcome.IssueType.INFORMATIONAL)
+        .setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+        .setDiagnostics("Validation stopped after $maxErrors error(s), further issues may not be reported")
+}
@@ -0,0 +1,56 @@
+package uk.nhs.england.fhirvalidator.provider
+
+import ca.uhn.fhir.context.FhirContext
+import org.hl7.fhir.r4.model.Bundle
+import org.hl7.fhir.r4.model.CodeableConcept
+import org.hl7.fhir.r4.model.Coding
+import org.hl7.fhir.r4.model.Observation
+import org.hl7.fhir.r4.model.Quantity
+import org.hl7.fhir.r4.model.Reference
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty
+import java.lang.management.ManagementFactory
+
+/**
+ * Cost of the JSON encode the validator makes when given a parsed resource rather than the request body, which is
+ * what validating the body as sent saves. Run with -Dbenchmark=true, e.g.
+ * mvn test -Dtest=RequestBodyValidationBenchmark -Dbenchmark=true
+ */
+@EnabledIfSystemProperty(named = "benchmark", matches = "true")
+internal class RequestBodyValidationBenchmark {
+
+    private val fhirContext = FhirContext.forR4()
+
+    // About the size of the 4 MB document Bundles this was written for
+    private fun bundle(): Bundle {
+        val bundle = Bundle().setType(Bundle.BundleType.DOCUMENT)
+        for (i in 0 until 6000) {
+            val observation = Observation()
+                .setStatus(Observation.ObservationStatus.FINAL)
+                .setCode(CodeableConcept(Coding("http://snomed.info/sct", "27113001", "Body weight")))
+                .setSubject(Reference("Patient/$i"))
+                .setValue(Quantity(70.0 + i % 30).setUnit("kg").setSystem("http://unitsofmeasure.org").setCode("kg"))
+            observation.id = "observation-$i"
+            bundle.addEntry().setFullUrl("urn:uuid:observation-$i").resource = observation
+        }
+        return bundle
+    }
+
+    @Test
+    fun encode_skipped_by_validating_the_request_body() {
+        val bundle = bundle()
+        val threads = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+        var size = 0
+        // Warm up
+        repeat(5) { size = fhirContext.newJsonParser().encodeResourceToString(bundle).length }
+        val runs = 20
+        val allocatedBefore = threads.getThreadAllocatedBytes(threadId)
+        val start = System.nanoTime()
+        repeat(runs) { fhirContext.newJsonParser().encodeResourceToString(bundle) }
+        val millis = (System.nanoTime() - start) / 1_000_000.0 / runs
+        val allocated = (threads.getThreadAllocatedBytes(threadId) - allocatedBefore) / runs
+        println(String.format("Encoding a %.1f MB Bundle: %.1f ms and %.1f MB allocated per request, saved when the body is validated as sent",
+            size / 1048576.0, millis, allocated / 1048576.0))
+    }
+}
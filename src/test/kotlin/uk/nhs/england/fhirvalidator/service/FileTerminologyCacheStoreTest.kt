@@ -0,0 +1,164 @@
+package uk.nhs.england.fhirvalidator.service
+
+import ca.uhn.fhir.context.FhirContext
+import ca.uhn.fhir.context.support.IValidationSupport
+import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import org.hl7.fhir.r4.model.Parameters
+import org.hl7.fhir.r4.model.StringType
+import org.hl7.fhir.r4.model.ValueSet
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import uk.nhs.england.fhirvalidator.configuration.TerminologyValidationProperties
+import uk.nhs.england.fhirvalidator.shared.LookupCodeResultUK
+import uk.nhs.england.fhirvalidator.shared.TerminologyCacheKey
+import uk.nhs.england.fhirvalidator.shared.TerminologyCacheStore
+import java.nio.file.Files
+import java.nio.file.Path
+import java.time.Duration
+
+internal class FileTerminologyCacheStoreTest {
+
+    private val fhirContext = FhirContext.forR4()
+
+    @TempDir
+    lateinit var directory: Path
+
+    private val stores = ArrayList<FileTerminologyCacheStore>()
+
+    @AfterEach
+    fun close() {
+        stores.forEach { it.close() }
+    }
+
+    private fun store(): FileTerminologyCacheStore {
+        val cache = TerminologyValidationProperties.Cache()
+        cache.persistence.directory = directory.toString()
+        // Flushed by the tests, not the background thread
+        cache.persistence.flushInterval = Duration.ofHours(1)
+        return FileTerminologyCacheStore(fhirContext, cache).also { stores.add(it) }
+    }
+
+    private class RecordingLoader : TerminologyCacheStore.Loader {
+        val codeValidations = HashMap<TerminologyCacheKey, Pair<IValidationSupport.CodeValidationResult, Long>>()
+        val lookups = HashMap<TerminologyCacheKey, Pair<IValidationSupport.LookupCodeResult, Long>>()
+        val expansions = HashMap<String, Pair<IValidationSupport.ValueSetExpansionOutcome, Long>>()
+
+        override fun codeValidation(theKey: TerminologyCacheKey, theResult: IValidationSupport.CodeValidationResult, theWrittenMillis: Long) {
+            codeValidations[theKey] = Pair(theResult, theWrittenMillis)
+        }
+
+        override fun lookupCode(theKey: TerminologyCacheKey, theResult: IValidationSupport.LookupCodeResult, theWrittenMillis: Long) {
+            lookups[theKey] = Pair(theResult, theWrittenMillis)
+        }
+
+        override fun expansion(theKey: String, theOutcome: IValidationSupport.ValueSetExpansionOutcome, theWrittenMillis: Long) {
+            expansions[theKey] = Pair(theOutcome, theWrittenMillis)
+        }
+    }
+
+    private fun load(): RecordingLoader = RecordingLoader().also { store().load(it) }
+
+    private fun writeEntries(file: String, vararg entries: FileTerminologyCacheStore.StoredEntry) {
+        val objectMapper = jacksonObjectMapper().setSerializationInclusion(JsonInclude.Include.NON_NULL)
+        Files.write(directory.resolve(file), entries.map { objectMapper.writeValueAsString(it) })
+    }
+
+    private fun storedValidation(system: String, code: String, version: String, written: Long) =
+        FileTerminologyCacheStore.StoredEntry(
+            key = FileTerminologyCacheStore.StoredKey(TerminologyCacheKey.Operation.VALIDATE_CODE, system, code),
+            system = system,
+            version = version,
+            written = written,
+            codeValidation = FileTerminologyCacheStore.StoredCodeValidation(code = code, codeSystemVersion = version)
+        )
+
+    @Test
+    fun code_validation_is_reloaded_after_flush() {
+        val key = TerminologyCacheKey.forValidateCode("http://snomed.info/sct", "27113001", "Body weight", null)
+        val result = IValidationSupport.CodeValidationResult()
+            .setCode("27113001")
+            .setDisplay("Body weight")
+            .setCodeSystemVersion("http://snomed.info/sct/83821000000107/version/20240925")
+            .setSeverity(IValidationSupport.IssueSeverity.WARNING)
+            .setMessage("Display differs")
+        val before = System.currentTimeMillis()
+        store().apply {
+            storeCodeValidation(key, result)
+            flush()
+        }
+
+        val loaded = load().codeValidations[key]
+        assertNotNull(loaded)
+        assertEquals("27113001", loaded!!.first.code)
+        assertEquals("Body weight", loaded.first.display)
+        assertEquals(result.codeSystemVersion, loaded.first.codeSystemVersion)
+        assertEquals(IValidationSupport.IssueSeverity.WARNING, loaded.first.severity)
+        assertEquals("Display differs", loaded.first.message)
+        // The original write time, so the entry keeps its expiry
+        assertTrue(loaded.second in before..System.currentTimeMillis())
+    }
+
+    @Test
+    fun lookup_and_expansion_are_reloaded_after_flush() {
+        val lookupKey = TerminologyCacheKey.forLookupCode("http://snomed.info/sct", "27113001", null)
+        val parameters = Parameters()
+        parameters.addParameter().setName("display").value = StringType("Body weight")
+        parameters.addParameter().setName("version").value = StringType("20240925")
+        val valueSet = ValueSet()
+        valueSet.url = "https://example.org/ValueSet/weights"
+        valueSet.expansion.addParameter().setName("version").value = StringType("http://snomed.info/sct|20240925")
+        valueSet.expansion.addContains().setSystem("http://snomed.info/sct").setCode("27113001")
+        store().apply {
+            storeLookupCode(lookupKey, LookupCodeResultUK.fromParameters(parameters))
+            storeExpansion("expandValueSet weights", IValidationSupport.ValueSetExpansionOutcome(valueSet))
+            flush()
+        }
+
+        val loader = load()
+        assertEquals("Body weight", loader.lookups[lookupKey]!!.first.codeDisplay)
+        val expansion = loader.expansions["expandValueSet weights"]!!.first.valueSet as ValueSet
+        assertEquals("27113001", expansion.expansion.containsFirstRep.code)
+    }
+
+    @Test
+    fun expired_entries_are_dropped() {
+        val now = System.currentTimeMillis()
+        // validateCode entries expire after 12 hours by default
+        writeEntries("validateCode.ndjson",
+            storedValidation("http://snomed.info/sct", "1", "v1", now - Duration.ofHours(13).toMillis()),
+            storedValidation("http://snomed.info/sct", "2", "v1", now))
+
+        val loaded = load().codeValidations.keys.map { it.code }
+        assertEquals(listOf("2"), loaded)
+        // and compacted out of the file
+        assertEquals(1, Files.readAllLines(directory.resolve("validateCode.ndjson")).size)
+    }
+
+    @Test
+    fun entries_from_an_older_code_system_version_are_dropped() {
+        val now = System.currentTimeMillis()
+        writeEntries("validateCode.ndjson",
+            storedValidation("http://snomed.info/sct", "1", "20240101", now - 2000),
+            storedValidation("http://snomed.info/sct", "2", "20240925", now - 1000),
+            storedValidation("http://loinc.org", "3", "2.76", now - 3000))
+
+        val loaded = load().codeValidations.keys.map { it.code }.sorted()
+        assertEquals(listOf("2", "3"), loaded)
+    }
+
+    @Test
+    fun only_the_newest_entry_for_a_key_is_kept() {
+        val now = System.currentTimeMillis()
+        writeEntries("validateCode.ndjson",
+            storedValidation("http://snomed.info/sct", "1", "v1", now - 2000),
+            storedValidation("http://snomed.info/sct", "1", "v1", now - 1000))
+
+        val loaded = load().codeValidations.values.single()
+        assertEquals(now - 1000, loaded.second)
+    }
+}
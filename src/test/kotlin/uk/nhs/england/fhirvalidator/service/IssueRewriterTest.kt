@@ -0,0 +1,88 @@
+package uk.nhs.england.fhirvalidator.service
+
+import org.hl7.fhir.r4.model.OperationOutcome
+import org.hl7.fhir.r4.model.StringType
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import uk.nhs.england.fhirvalidator.configuration.ValidationProperties
+
+internal class IssueRewriterTest {
+
+    private val diagnostics = listOf(
+        "HTTP 404 Not Found: https://fhir.nhs.uk/CodeSystem/NHSDataModelAndDictionary-treatment-function code 100",
+        "HTTP 404: A usable code system with URL http://loinc.org could not be resolved",
+        "HTTP 404: A usable code system with URL https://fhir.hl7.org.uk/CodeSystem/UKCore-x could not be resolved",
+        "A usable code system with URL http://snomed.info/sct could not be resolved",
+        "Unknown code in http://unstats.un.org/unsd/methods/m49/m49.htm",
+        "The value provided is not in the value set, note that the validator cannot judge what is suitable",
+        "Cannot invoke \"getUrl()\" because \"theCodeSystem\" is null",
+        "This element does not match any known slice but you should check that it's not intended to match a slice",
+        "Cannot invoke &quot;getUrl()&quot; because &quot;theCodeSystem&quot; is null",
+        "Constraint failed: dom-6: 'A resource should have narrative for robust management'",
+        "Patient.identifier: minimum required = 1, but only found 0",
+        "HTTP 404 Not Found"
+    )
+
+    /**
+     * The checks ValidateR4Provider made before validation.issueRules
+     */
+    private fun previousRewrite(operationOutcome: OperationOutcome) {
+        operationOutcome.issue.forEach { issue ->
+            if (issue.hasLocation()) {
+                issue.location = issue.location.filter { it.value == null || !it.value.startsWith("Line") }
+            }
+            if (issue.hasDiagnostics() && issue.diagnostics.contains("404")) {
+                if (issue.diagnostics.contains("https://fhir.nhs.uk/CodeSystem/NHSDataModelAndDictionary-treatment-function")) {
+                    issue.severity = OperationOutcome.IssueSeverity.INFORMATION
+                }
+                if (!issue.diagnostics.contains(".uk") && issue.diagnostics.contains("A usable code system with URL")) {
+                    issue.severity = OperationOutcome.IssueSeverity.INFORMATION
+                }
+            }
+            if (issue.hasDiagnostics() && (issue.diagnostics.contains("http://unstats.un.org/unsd/")
+                        || issue.diagnostics.contains("note that the validator cannot judge what is suitable")
+                        || issue.diagnostics.contains("A resource should have narrative for robust management"))) {
+                issue.severity = OperationOutcome.IssueSeverity.INFORMATION
+            }
+        }
+        operationOutcome.issue = operationOutcome.issue.filter {
+            !(it.hasDiagnostics() && (it.diagnostics.contains("because \"theCodeSystem\"")
+                    || it.diagnostics.contains("but you should check that it's not intended to match a slice")
+                    || it.diagnostics.contains("because &quot;theCodeSystem&quot; is null")
+                    || it.diagnostics.contains("A resource should have narrative for robust management")))
+        }
+    }
+
+    private fun outcome(): OperationOutcome {
+        val outcome = OperationOutcome()
+        diagnostics.forEach {
+            outcome.addIssue()
+                .setSeverity(OperationOutcome.IssueSeverity.ERROR)
+                .setDiagnostics(it)
+                .setLocation(listOf(StringType("Patient.identifier"), StringType("Line[1] Col[2]")))
+        }
+        return outcome
+    }
+
+    private fun summary(outcome: OperationOutcome) =
+        outcome.issue.map { Triple(it.diagnostics, it.severity, it.location.map { location -> location.value }) }
+
+    @Test
+    fun default_rules_match_the_previous_checks() {
+        val expected = outcome().also { previousRewrite(it) }
+        val actual = outcome().also { IssueRewriter(ValidationProperties()).rewrite(it) }
+        assertEquals(summary(expected), summary(actual))
+    }
+
+    @Test
+    fun rules_can_be_replaced() {
+        val properties = ValidationProperties(issueRules = listOf(
+            ValidationProperties.IssueRule("minimum", allOf = listOf("minimum required"), action = "warning")
+        ))
+        val actual = outcome().also { IssueRewriter(properties).rewrite(it) }
+        assertEquals(diagnostics.size, actual.issue.size)
+        assertEquals(OperationOutcome.IssueSeverity.WARNING,
+            actual.issue.single { it.diagnostics.contains("minimum required") }.severity)
+        assertEquals(1, actual.issue.count { it.severity == OperationOutcome.IssueSeverity.WARNING })
+    }
+}
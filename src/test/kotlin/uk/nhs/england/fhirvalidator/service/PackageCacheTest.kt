@@ -0,0 +1,144 @@
+package uk.nhs.england.fhirvalidator.service
+
+import ca.uhn.fhir.rest.server.exceptions.UnprocessableEntityException
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import uk.nhs.england.fhirvalidator.configuration.FHIRServerProperties
+import uk.nhs.england.fhirvalidator.configuration.MessageProperties
+import uk.nhs.england.fhirvalidator.configuration.ValidationProperties
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.InputStream
+import java.nio.file.Files
+import java.nio.file.Path
+import java.security.MessageDigest
+import java.util.Base64
+import java.util.HexFormat
+import java.util.zip.GZIPOutputStream
+
+internal class PackageCacheTest {
+
+    companion object {
+        private const val NAME = "uk.nhsengland.r4"
+        private const val VERSION = "1.0.0"
+        private const val REGISTRY_ENTRY = "https://packages.simplifier.net/$NAME"
+        private const val REGISTRY_PACKAGE = "https://packages.simplifier.net/$NAME/$VERSION"
+        private const val DOWNLOAD_PATH = "https://build.fhir.org/ig/example/package.tgz"
+    }
+
+    @TempDir
+    lateinit var directory: Path
+
+    private val tgz = packageTgz()
+
+    /**
+     * Responds from [responses] instead of the network, any other url fails as a 404 would
+     */
+    private class FakeDownloads(cacheDirectory: Path?, private val responses: Map<String, ByteArray>) : PackageCache(
+        MessageProperties(),
+        FHIRServerProperties(FHIRServerProperties.Server("http://localhost", "test", "1"), null, null),
+        jacksonObjectMapper(),
+        ValidationProperties(packageCache = cacheDirectory?.toString())
+    ) {
+        val requested = ArrayList<String>()
+
+        override fun readFromUrl(url: String): InputStream {
+            requested.add(url)
+            val response = responses[url] ?: throw UnprocessableEntityException("Not found $url")
+            return ByteArrayInputStream(response)
+        }
+    }
+
+    private fun packageTgz(): ByteArray {
+        val packageJson = """{"name":"$NAME","version":"$VERSION","fhirVersions":["4.0.1"]}""".toByteArray()
+        val bytes = ByteArrayOutputStream()
+        TarArchiveOutputStream(GZIPOutputStream(bytes)).use { tar ->
+            val entry = TarArchiveEntry("package/package.json")
+            entry.size = packageJson.size.toLong()
+            tar.putArchiveEntry(entry)
+            tar.write(packageJson)
+            tar.closeArchiveEntry()
+        }
+        return bytes.toByteArray()
+    }
+
+    private fun registryEntry(integrity: ByteArray): ByteArray {
+        val sha512 = Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-512").digest(integrity))
+        return """{"name":"$NAME","versions":{"$VERSION":{"dist":{"integrity":"sha512-$sha512"}}}}""".toByteArray()
+    }
+
+    private fun sha256(bytes: ByteArray): String =
+        HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(bytes))
+
+    private fun cachedFile(): Path = directory.resolve("sha256").resolve("${sha256(tgz)}.tgz")
+
+    @Test
+    fun registry_package_matching_the_integrity_is_cached_by_content() {
+        val cache = FakeDownloads(directory, mapOf(REGISTRY_PACKAGE to tgz, REGISTRY_ENTRY to registryEntry(tgz)))
+
+        assertEquals(NAME, cache.getPackage(NAME, VERSION, null).name())
+
+        assertEquals(sha256(tgz), Files.readString(directory.resolve("index").resolve("$NAME#$VERSION")))
+        assertArrayEquals(tgz, Files.readAllBytes(cachedFile()))
+        assertEquals(listOf("$NAME#$VERSION"), cache.getCachedPackages())
+    }
+
+    @Test
+    fun cached_package_is_used_without_downloading() {
+        FakeDownloads(directory, mapOf(REGISTRY_PACKAGE to tgz, REGISTRY_ENTRY to registryEntry(tgz)))
+            .getPackage(NAME, VERSION, null)
+        val offline = FakeDownloads(directory, emptyMap())
+
+        assertEquals(NAME, offline.getPackage(NAME, VERSION, null).name())
+        assertTrue(offline.requested.isEmpty())
+    }
+
+    @Test
+    fun registry_package_not_matching_the_integrity_is_used_but_not_cached() {
+        val cache = FakeDownloads(directory,
+            mapOf(REGISTRY_PACKAGE to tgz, REGISTRY_ENTRY to registryEntry("something else".toByteArray())))
+
+        assertEquals(NAME, cache.getPackage(NAME, VERSION, null).name())
+
+        assertFalse(Files.exists(directory.resolve("index").resolve("$NAME#$VERSION")))
+        assertTrue(cache.getCachedPackages().isEmpty())
+    }
+
+    @Test
+    fun package_from_a_download_path_is_cached_without_asking_the_registry() {
+        val cache = FakeDownloads(directory, mapOf(DOWNLOAD_PATH to tgz))
+
+        cache.getPackage(NAME, VERSION, DOWNLOAD_PATH)
+
+        assertEquals(listOf(DOWNLOAD_PATH), cache.requested)
+        assertArrayEquals(tgz, Files.readAllBytes(cachedFile()))
+    }
+
+    @Test
+    fun registry_is_not_asked_without_a_cache_directory() {
+        val cache = FakeDownloads(null, mapOf(REGISTRY_PACKAGE to tgz, REGISTRY_ENTRY to registryEntry(tgz)))
+
+        cache.getPackage(NAME, VERSION, null)
+
+        assertFalse(cache.requested.contains(REGISTRY_ENTRY))
+    }
+
+    @Test
+    fun corrupt_cached_package_is_removed_and_downloaded_again() {
+        FakeDownloads(directory, mapOf(DOWNLOAD_PATH to tgz)).getPackage(NAME, VERSION, DOWNLOAD_PATH)
+        Files.write(cachedFile(), "truncated".toByteArray())
+        val cache = FakeDownloads(directory, mapOf(DOWNLOAD_PATH to tgz))
+
+        assertEquals(NAME, cache.getPackage(NAME, VERSION, DOWNLOAD_PATH).name())
+
+        assertEquals(listOf(DOWNLOAD_PATH), cache.requested)
+        assertArrayEquals(tgz, Files.readAllBytes(cachedFile()))
+    }
+}
@@ -0,0 +1,87 @@
+package uk.nhs.england.fhirvalidator.shared
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+internal class InFlightRequestsTest {
+
+    private val executor = Executors.newCachedThreadPool()
+
+    @Test
+    fun concurrent_callers_for_the_same_key_share_one_call() {
+        val inFlight = InFlightRequests<String, String>()
+        val calls = AtomicInteger()
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val first = executor.submit<String> {
+            inFlight.execute("key") {
+                calls.incrementAndGet()
+                started.countDown()
+                release.await()
+                "value"
+            }
+        }
+        started.await()
+        val second = executor.submit<String> { inFlight.execute("key") { calls.incrementAndGet(); "other" } }
+        // The second caller is waiting on the first call
+        while (inFlight.callsSaved == 0L) Thread.sleep(1)
+        release.countDown()
+
+        assertEquals("value", first.get(5, TimeUnit.SECONDS))
+        assertEquals("value", second.get(5, TimeUnit.SECONDS))
+        assertEquals(1, calls.get())
+        assertEquals(0, inFlight.inFlight)
+    }
+
+    @Test
+    fun different_keys_are_not_shared() {
+        val inFlight = InFlightRequests<String, String>()
+        assertEquals("a", inFlight.execute("a") { "a" })
+        assertEquals("b", inFlight.execute("b") { "b" })
+        assertEquals(0L, inFlight.callsSaved)
+    }
+
+    @Test
+    fun results_are_not_retained_after_the_call() {
+        val inFlight = InFlightRequests<String, Int>()
+        val calls = AtomicInteger()
+        inFlight.execute("key") { calls.incrementAndGet() }
+        inFlight.execute("key") { calls.incrementAndGet() }
+        assertEquals(2, calls.get())
+    }
+
+    @Test
+    fun reentrant_call_for_the_same_key_runs_directly() {
+        val inFlight = InFlightRequests<String, String>()
+        val result = inFlight.execute("key") { "outer " + inFlight.execute("key") { "inner" } }
+        assertEquals("outer inner", result)
+    }
+
+    @Test
+    fun failure_is_passed_to_waiting_callers() {
+        val inFlight = InFlightRequests<String, String>()
+        val failure = IllegalStateException("remote failed")
+        val started = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        val first = executor.submit<String> {
+            inFlight.execute("key") {
+                started.countDown()
+                release.await()
+                throw failure
+            }
+        }
+        started.await()
+        val second = executor.submit<String> { inFlight.execute("key") { "other" } }
+        while (inFlight.callsSaved == 0L) Thread.sleep(1)
+        release.countDown()
+
+        assertSame(failure, assertThrows<java.util.concurrent.ExecutionException> { first.get(5, TimeUnit.SECONDS) }.cause)
+        assertSame(failure, assertThrows<java.util.concurrent.ExecutionException> { second.get(5, TimeUnit.SECONDS) }.cause)
+    }
+}
@@ -0,0 +1,60 @@
+package uk.nhs.england.fhirvalidator.util
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+internal class MultiPatternMatcherTest {
+
+    private fun found(patterns: List<String>, text: String?): List<Int> =
+        MultiPatternMatcher(patterns).find(text).stream().toArray().toList()
+
+    private fun expected(patterns: List<String>, text: String): List<Int> =
+        patterns.indices.filter { text.contains(patterns[it]) }
+
+    @Test
+    fun finds_each_pattern_in_the_text() {
+        assertEquals(listOf(0, 2), found(listOf("404", "missing", "code system"), "HTTP 404, code system not found"))
+    }
+
+    @Test
+    fun finds_nothing_in_null_or_empty_text() {
+        assertTrue(MultiPatternMatcher(listOf("a")).find(null).isEmpty)
+        assertTrue(MultiPatternMatcher(listOf("a")).find("").isEmpty)
+    }
+
+    @Test
+    fun finds_patterns_contained_in_other_patterns() {
+        // "he" and "e" end inside "she", found through the fail links
+        val patterns = listOf("she", "he", "e", "hers")
+        assertEquals(listOf(0, 1, 2), found(patterns, "ushe"))
+        assertEquals(listOf(1, 2, 3), found(patterns, "hers"))
+    }
+
+    @Test
+    fun follows_fail_links_after_a_partial_match() {
+        // "abcd" fails at 'x', the match must restart from "bc" rather than the root
+        val patterns = listOf("abcd", "bcx")
+        assertEquals(listOf(1), found(patterns, "abcx"))
+        assertEquals(listOf(0), found(patterns, "aabcd"))
+    }
+
+    @Test
+    fun finds_overlapping_and_repeated_patterns() {
+        val patterns = listOf("aa", "aaa", "aba", "ab")
+        assertEquals(listOf(0, 1, 2, 3), found(patterns, "aaaba"))
+    }
+
+    @Test
+    fun agrees_with_contains() {
+        val patterns = listOf("because \"theCodeSystem\"", "theCode", "Code", "404", "0404", ".uk", "uk.", "A usable code system with URL")
+        val texts = listOf(
+            "Cannot invoke because \"theCodeSystem\" is null",
+            "HTTP 0404: A usable code system with URL https://example.org/uk.cs could not be resolved",
+            "https://fhir.nhs.uk/CodeSystem/x returned 404",
+            "nothing to see",
+            "theCodeSystemCode"
+        )
+        texts.forEach { assertEquals(expected(patterns, it), found(patterns, it), it) }
+    }
+}
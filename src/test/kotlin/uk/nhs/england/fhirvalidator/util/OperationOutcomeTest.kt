@@ -0,0 +1,48 @@
+package uk.nhs.england.fhirvalidator.util
+
+import org.hl7.fhir.r4.model.OperationOutcome
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+
+internal class OperationOutcomeTest {
+
+    private fun issue(severity: OperationOutcome.IssueSeverity, diagnostics: String) =
+        OperationOutcome.OperationOutcomeIssueComponent().setSeverity(severity).setDiagnostics(diagnostics)
+
+    private val issues = listOf(
+        issue(OperationOutcome.IssueSeverity.ERROR, "error 1"),
+        issue(OperationOutcome.IssueSeverity.WARNING, "warning"),
+        issue(OperationOutcome.IssueSeverity.FATAL, "fatal 2"),
+        issue(OperationOutcome.IssueSeverity.INFORMATION, "information"),
+        issue(OperationOutcome.IssueSeverity.ERROR, "error 3")
+    )
+
+    private fun stoppedNotes(issues: List<OperationOutcome.OperationOutcomeIssueComponent>) =
+        issues.count { it.diagnostics.startsWith("Validation stopped") }
+
+    @Test
+    fun counts_errors_and_fatals() {
+        assertEquals(3, countErrors(issues))
+    }
+
+    @Test
+    fun keeps_the_first_errors_and_all_other_issues() {
+        val limited = limitErrors(issues, 2, false)
+        assertEquals(listOf("error 1", "warning", "fatal 2", "information"), limited.dropLast(1).map { it.diagnostics })
+        assertEquals(1, stoppedNotes(limited))
+    }
+
+    @Test
+    fun no_note_when_nothing_was_skipped() {
+        // Exactly maxErrors errors, all of them reported
+        assertEquals(issues, limitErrors(issues, 3, false))
+        assertEquals(issues, limitErrors(issues, 10, false))
+    }
+
+    @Test
+    fun note_when_validation_was_cut_short() {
+        val limited = limitErrors(issues, 3, true)
+        assertEquals(issues.size + 1, limited.size)
+        assertEquals(1, stoppedNotes(limited))
+    }
+}